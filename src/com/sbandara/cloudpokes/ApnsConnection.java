@@ -0,0 +1,959 @@
+package com.sbandara.cloudpokes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sbandara.cloudpokes.util.MappedJournal;
+import com.sbandara.cloudpokes.util.TokenBucket;
+
+/**
+ * A single dispatch connection to APNS. Each connection owns its link, which
+ * receives error responses, and, in pipelined mode, its redo tape. In
+ * pipelined mode, frames are coalesced in a buffer that is written to the
+ * link when full, when the redo tape runs empty, or after a short delay.
+ * <p>
+ * Notifications sent with a future are tracked until they are confirmed,
+ * either because an error response names a later notification, or because
+ * no error response arrived within the retention time of the redo tape.
+ * <p>
+ * With a journal, each notification is also recorded as an encoded frame.
+ * Frames that fell off the redo tape are resent from the journal, as are
+ * frames that were not written before a restart.
+ * <p>
+ * A standby link is opened in the background as soon as the connection is
+ * created, and again whenever the standby was taken into use, so that the
+ * link closed after an error is replaced without connecting inline. Failed
+ * attempts are retried after a jittered, exponentially growing delay.
+ * <p>
+ * In pipelined mode, batches can be paced by a rate limit of the connection
+ * and one shared by all connections. Both are slowed down whenever APNS
+ * hangs up or shuts the link down.
+ * <p>
+ * A connection of the low priority lane holds power saving notifications
+ * back until a full batch is pending, or the oldest waited long enough,
+ * and while its urgent peer has notifications pending. It then writes them
+ * in one burst.
+ */
+final class ApnsConnection implements ApnsLink.Listener {
+	
+	private final static Timer flush_timer = new Timer("ApnsFlushTimer", true),
+			connect_timer = new Timer("ApnsConnector", true);
+	private final static int DIRECT_BUF_SIZE = 8192, DIRECT_CONFIRM_MILLIS =
+			2000, MAX_BATCH = 512, MIN_BACKOFF_MILLIS = 100,
+			MAX_BACKOFF_MILLIS = 30000;
+	private final static int FORCE_MILLIS = 1000;
+	final static int RATE_RECOVERY_MILLIS = 30000;
+	
+	private final ApnsPushSender gateway;
+	private final NioApnsTransport transport;
+	private final ReentrantLock socket_lock = new ReentrantLock();
+	private final Condition resumed = socket_lock.newCondition();
+	private ApnsLink link = null, observer = null, standby = null;
+	private int n_failed = 0;
+	private boolean is_suspended = false, is_connecting = false,
+			is_flush_scheduled = false, is_confirm_scheduled = false,
+			has_written = false, has_unflushed = false;
+	private volatile boolean is_shut_down = false;
+	private volatile long retry_at = 0;
+	private TimerTask connect_task = null, force_task = null;
+	private final Thread writer;
+	private int last_written_id, first_unflushed_id;
+	private final BatchRedoQueue<ApnsFrame> redo_queue;
+	private final int batch_size, max_delay_millis, confirm_millis,
+			max_batch;
+	private final TokenBucket pacer, global_pacer;
+	private final ApnsConnection urgent;
+	private volatile ApnsConnection low_peer = null;
+	private final int burst_delay_millis;
+	private final ArrayDeque<Unconfirmed> unconfirmed =
+			new ArrayDeque<Unconfirmed>();
+	private final MappedJournal journal;
+	private final Object journal_lock = new Object();
+	private long written_end = -1;
+	private byte[] frame_buf = null;
+	private volatile ApnsFrame last_direct = null;
+	
+	private final static class Unconfirmed {
+		
+		final ApnsNotification notification;
+		final ApnsLink link;
+		final long written = System.currentTimeMillis();
+		
+		Unconfirmed(ApnsNotification notification, ApnsLink link) {
+			this.notification = notification;
+			this.link = link;
+		}
+	}
+	
+	ApnsConnection(ApnsPushSender gateway, DispatchOptions options,
+			NioApnsTransport transport, MappedJournal journal,
+			TokenBucket global_pacer, ApnsConnection urgent) {
+		this.gateway = gateway;
+		this.transport = transport;
+		this.journal = journal;
+		this.global_pacer = global_pacer;
+		this.urgent = urgent;
+		pacer = ((options == null) || (options.getRate() <= 0)) ? null :
+				new TokenBucket(options.getRate(), options.getBurst(),
+				RATE_RECOVERY_MILLIS);
+		int max = MAX_BATCH;
+		if (pacer != null) {
+			max = Math.min(max, pacer.getBurst());
+		}
+		if (global_pacer != null) {
+			max = Math.min(max, global_pacer.getBurst());
+		}
+		max_batch = max;
+		if (options == null) {
+			redo_queue = null;
+			batch_size = DIRECT_BUF_SIZE;
+			max_delay_millis = 0;
+			burst_delay_millis = 0;
+			confirm_millis = DIRECT_CONFIRM_MILLIS;
+			writer = null;
+		}
+		else {
+			redo_queue = new BatchRedoQueue<ApnsFrame>(options
+					.getHistorySize(), options.getMaxHistorySize(), options
+					.getHistoryMillis());
+			if (urgent == null) {
+				batch_size = options.getBatchSize();
+				burst_delay_millis = 0;
+			}
+			else {
+				batch_size = options.getLowPriorityBatchSize();
+				burst_delay_millis = options.getLowPriorityDelayMillis();
+			}
+			max_delay_millis = options.getMaxDelayMillis();
+			confirm_millis = options.getHistoryMillis();
+			writer = new Thread(new Writer((journal == null) ? -1 : journal
+					.getEnd()), "ApnsWriter");
+			writer.setDaemon(true);
+			if (urgent != null) {
+				urgent.low_peer = this;
+			}
+			writer.start();
+			if (journal != null) {
+				force_task = new ForceTask();
+				flush_timer.schedule(force_task, FORCE_MILLIS, FORCE_MILLIS);
+			}
+		}
+		socket_lock.lock();
+		try {
+			prepareStandby(0);
+		}
+		finally {
+			socket_lock.unlock();
+		}
+	}
+	
+	/**
+	 * Stops the writer, cancels any pending standby connect, flushes and
+	 * closes the links, and closes the journal. Notifications that were still
+	 * waiting to be written are dropped, unless a journal recorded them, in
+	 * which case they are sent after a restart. Notifications sent afterwards
+	 * fail with a hangup.
+	 */
+	void shutdown() {
+		is_shut_down = true;
+		if (writer != null) {
+			writer.interrupt();
+		}
+		socket_lock.lock();
+		try {
+			if (connect_task != null) {
+				connect_task.cancel();
+				connect_task = null;
+			}
+			if ((link != null) && (! is_suspended)) {
+				try {
+					link.getOutputStream().flush();
+				}
+				catch (IOException e) { }
+			}
+			Unconfirmed entry;
+			while ((entry = unconfirmed.poll()) != null) {
+				entry.notification.didComplete(PushResult.apns(entry
+						.notification, ApnsLink.HANGUP));
+			}
+			closeLink();
+			if (standby != null) {
+				standby.close();
+				standby = null;
+			}
+			resumed.signalAll();
+		}
+		finally {
+			socket_lock.unlock();
+		}
+		if (writer != null) {
+			try {
+				writer.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (force_task != null) {
+			force_task.cancel();
+		}
+		if (journal != null) {
+			synchronized (journal_lock) {
+				journal.close();
+			}
+		}
+	}
+	
+	int getLastSentId() {
+		ApnsLink last = observer;
+		return (last == null) ? 0 : last.getLastSentId();
+	}
+	
+	int getErrorCode() {
+		ApnsLink last = observer;
+		return (last == null) ? ApnsLink.OK : last.getErrorCode();
+	}
+	
+	private void closeLink() {
+		if (link != null) {
+			link.close();
+			link = null;
+		}
+	}
+	
+	/**
+	 * Closes the link after a failed write. In pipelined mode, the writer is
+	 * suspended until the link reports that it closed, along with any error
+	 * response, and the tape is rewound then. If no link could be opened at
+	 * all, the notification that could not be written is drained again along
+	 * with those after it, and the writer backs off.
+	 * @param unwritten the notification that could not be written, or null
+	 */
+	private void didFailToWrite(ApnsFrame unwritten) {
+		System.out.println("Failed to dispatch notification.");
+		ApnsLink failed = link;
+		closeLink();
+		if (redo_queue == null) {
+			return;
+		}
+		if ((! has_unflushed) && (unwritten != null)) {
+			first_unflushed_id = unwritten.getIdentifier();
+			has_unflushed = true;
+		}
+		if (failed != null) {
+			is_suspended = true;
+			return;
+		}
+		retry_at = System.currentTimeMillis() + backOffMillis(++ n_failed);
+		replayUnflushed();
+	}
+	
+	/**
+	 * Stops tracking the notifications written to a link from the one with
+	 * the given identifier on, as they will be written again.
+	 */
+	private void dropUnconfirmed(ApnsLink failed, int from_id) {
+		boolean is_replayed = false;
+		Iterator<Unconfirmed> it = unconfirmed.iterator();
+		while (it.hasNext()) {
+			Unconfirmed entry = it.next();
+			if (entry.link == failed) {
+				is_replayed |= entry.notification.getIdentifier() == from_id;
+				if (is_replayed) {
+					it.remove();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Rewinds the tape to the first notification that was written but not
+	 * flushed, since those frames were still buffered when the link closed.
+	 * If all were flushed, everything written is released.
+	 */
+	private void replayUnflushed() {
+		if (has_unflushed) {
+			has_unflushed = false;
+			try {
+				redo_queue.rewindBefore(first_unflushed_id);
+			}
+			catch (EntryNotFoundException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+		else if (has_written) {
+			redo_queue.release(last_written_id);
+		}
+		has_written = false;
+	}
+	
+	/**
+	 * Settles the notifications written to a closed link. If APNS named a
+	 * notification in an error response, those written before it were
+	 * accepted, and those written after it will be resent in pipelined mode.
+	 * Any others are reported as lost.
+	 */
+	private void settleUnconfirmed(ApnsLink closed) {
+		final boolean did_respond = closed.didReceiveResponse();
+		final int code = closed.getErrorCode(), id = closed.getLastSentId();
+		boolean is_past_error = false;
+		Iterator<Unconfirmed> it = unconfirmed.iterator();
+		while (it.hasNext()) {
+			Unconfirmed entry = it.next();
+			if (entry.link != closed) {
+				continue;
+			}
+			it.remove();
+			ApnsNotification notification = entry.notification;
+			if (is_past_error) {
+				if (redo_queue == null) {
+					notification.didComplete(PushResult.apns(notification,
+							ApnsLink.HANGUP));
+				}
+			}
+			else if (did_respond && (notification.getIdentifier() == id)) {
+				notification.didComplete(PushResult.apns(notification,
+						(code == ApnsLink.SHUTDOWN) ? ApnsLink.OK : code));
+				is_past_error = true;
+			}
+			else {
+				notification.didComplete(PushResult.apns(notification,
+						did_respond ? ApnsLink.OK : ApnsLink.HANGUP));
+			}
+		}
+	}
+	
+	/**
+	 * Looks up a frame that was written by its identifier. In direct mode,
+	 * only the last frame can be found.
+	 */
+	private ApnsFrame findWritten(int id) {
+		if (redo_queue != null) {
+			return redo_queue.get(id);
+		}
+		ApnsFrame last = last_direct;
+		return ((last != null) && (last.getIdentifier() == id)) ? last : null;
+	}
+	
+	public void linkDidClose(ApnsLink closed) {
+		socket_lock.lock();
+		try {
+			if (is_shut_down) {
+				return;
+			}
+			if (closed == standby) {
+				standby = null;
+				prepareStandby(backOffMillis(++ n_failed));
+				return;
+			}
+		}
+		finally {
+			socket_lock.unlock();
+		}
+		if (closed.didReceiveResponse()) {
+			gateway.didReceiveError(closed);
+		}
+		if (closed.getErrorCode() == ApnsLink.BAD_TOKEN) {
+			ApnsFrame rejected = findWritten(closed.getLastSentId());
+			if (rejected != null) {
+				gateway.didRejectToken(rejected.getToken());
+			}
+		}
+		if (redo_queue == null) {
+			socket_lock.lock();
+			try {
+				settleUnconfirmed(closed);
+			}
+			finally {
+				socket_lock.unlock();
+			}
+			return;
+		}
+		socket_lock.lock();
+		try {
+			final boolean is_observed = closed == observer;
+			if (is_observed && has_unflushed && (! closed
+					.didReceiveResponse())) {
+				dropUnconfirmed(closed, first_unflushed_id);
+			}
+			settleUnconfirmed(closed);
+			if (! is_observed) {
+				return;
+			}
+			closeLink();
+			is_suspended = true;
+			int code = closed.getErrorCode();
+			if ((code == ApnsLink.HANGUP) || (code == ApnsLink.SHUTDOWN)) {
+				slowDown();
+			}
+			// Without an error response, only unflushed frames are replayed.
+			if (! closed.didReceiveResponse()) {
+				replayUnflushed();
+			}
+			has_written = has_unflushed = false;
+		}
+		finally {
+			socket_lock.unlock();
+		}
+		try {
+			if (closed.didReceiveResponse()) {
+				redo_queue.rewind(closed.getLastSentId());
+				rewindJournal(closed.getLastSentId(), false);
+			}
+		}
+		catch (EntryNotFoundException e) {
+			if (journal == null) {
+				System.out.println(e.getMessage());
+			}
+			else {
+				rewindJournal(closed.getLastSentId(), true);
+			}
+		}
+		finally {
+			socket_lock.lock();
+			try {
+				is_suspended = false;
+				resumed.signalAll();
+			}
+			finally {
+				socket_lock.unlock();
+			}
+		}
+	}
+	
+	private final class ConfirmTask extends TimerTask {
+		public void run() {
+			confirm();
+		}
+	}
+	
+	/**
+	 * Reports notifications as accepted that were written longer than the
+	 * retention time ago without an error response.
+	 */
+	private void confirm() {
+		socket_lock.lock();
+		try {
+			is_confirm_scheduled = false;
+			long deadline = System.currentTimeMillis() - confirm_millis;
+			Unconfirmed entry;
+			while (((entry = unconfirmed.peek()) != null) && (entry.written <=
+					deadline) && (entry.link.getErrorCode() == ApnsLink.OK)) {
+				unconfirmed.poll();
+				entry.notification.didComplete(PushResult.apns(entry
+						.notification, ApnsLink.OK));
+			}
+			scheduleConfirm();
+		}
+		finally {
+			socket_lock.unlock();
+		}
+	}
+	
+	private void scheduleConfirm() {
+		Unconfirmed first = unconfirmed.peek();
+		if ((first == null) || is_confirm_scheduled) {
+			return;
+		}
+		long delay = first.written + confirm_millis - System
+				.currentTimeMillis();
+		flush_timer.schedule(new ConfirmTask(), Math.max(delay, 0) + 1);
+		is_confirm_scheduled = true;
+	}
+	
+	/**
+	 * Forces the journal to the storage device, so that no more than the
+	 * notifications of the last interval are lost if the host goes down.
+	 */
+	private final class ForceTask extends TimerTask {
+		public void run() {
+			journal.force();
+		}
+	}
+	
+	private final class FlushTask extends TimerTask {
+		public void run() {
+			flush();
+		}
+	}
+	
+	void flush() {
+		socket_lock.lock();
+		try {
+			is_flush_scheduled = false;
+			if ((link != null) && (! is_suspended)) {
+				try {
+					link.getOutputStream().flush();
+					has_unflushed = false;
+				}
+				catch (IOException e) {
+					didFailToWrite(null);
+				}
+			}
+		}
+		finally {
+			socket_lock.unlock();
+		}
+	}
+	
+	/**
+	 * Drains notifications from the redo tape in batches and writes each
+	 * batch while holding the socket lock once. Buffered frames are flushed
+	 * whenever the tape runs empty.
+	 */
+	private final class Writer implements Runnable {
+		
+		private final ArrayList<ApnsFrame> batch =
+				new ArrayList<ApnsFrame>(MAX_BATCH);
+		private final long recovered_end;
+		private long burst_deadline = -1;
+		
+		Writer(long recovered_end) {
+			this.recovered_end = recovered_end;
+		}
+		
+		public void run() {
+			if (recovered_end >= 0) {
+				socket_lock.lock();
+				try {
+					resendFromJournal(journal.getConsumed(), recovered_end);
+				}
+				finally {
+					socket_lock.unlock();
+				}
+			}
+			while (! is_shut_down) {
+				batch.clear();
+				long delay = retry_at - System.currentTimeMillis();
+				if (delay > 0) {
+					LockSupport.parkNanos(delay * 1000000);
+					continue;
+				}
+				try {
+					if ((urgent != null) && redo_queue.hasPending()) {
+						awaitBurst();
+					}
+					if (redo_queue.hasPending()) {
+						int n = pace((int) Math.min(redo_queue.getClaimed() -
+								redo_queue.getCursor(), max_batch));
+						unpace(n - redo_queue.drainTo(batch, n));
+						writeBatch(batch);
+						continue;
+					}
+					burst_deadline = -1;
+					ApnsConnection peer = low_peer;
+					if (peer != null) {
+						LockSupport.unpark(peer.writer);
+					}
+					flush();
+					if ((confirm_millis == 0) || (! redo_queue.awaitPending(
+							confirm_millis))) {
+						releaseQuiet();
+						redo_queue.awaitPending();
+					}
+				}
+				catch (RuntimeException e) {
+					System.out.println("Unhandled Exception.");
+				}
+			}
+		}
+		
+		/**
+		 * Holds back low priority notifications until a full batch is
+		 * pending, or until the burst delay passed since the tape last ran
+		 * empty, and while the urgent peer has notifications pending. The
+		 * writer is unparked when a batch fills up and when the urgent peer
+		 * runs empty.
+		 */
+		private void awaitBurst() {
+			long now = System.currentTimeMillis();
+			if (burst_deadline < 0) {
+				burst_deadline = now + burst_delay_millis;
+			}
+			while ((now < burst_deadline) && (! is_shut_down) && ((!
+					isBatchFull()) || urgent.hasPending())) {
+				LockSupport.parkNanos(this, (burst_deadline - now) * 1000000);
+				now = System.currentTimeMillis();
+			}
+		}
+	}
+	
+	/**
+	 * Releases all notifications written to the link once it stayed quiet for
+	 * the retention time, as APNS would have responded to an error by now.
+	 */
+	private void releaseQuiet() {
+		socket_lock.lock();
+		try {
+			if (has_written && (link != null) && (! is_suspended) && (link
+					.getErrorCode() == ApnsLink.OK)) {
+				redo_queue.release(last_written_id);
+			}
+		}
+		finally {
+			socket_lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return true if all notifications drained from the redo tape were
+	 * released
+	 */
+	boolean isReleased() {
+		return (redo_queue != null) && (redo_queue.getReleased() == redo_queue
+				.getCursor());
+	}
+	
+	private boolean isBatchFull() {
+		return redo_queue.getClaimed() - redo_queue.getCursor() >= max_batch;
+	}
+	
+	/**
+	 * @return true if notifications are waiting on the redo tape
+	 */
+	boolean hasPending() {
+		return (redo_queue != null) && redo_queue.hasPending();
+	}
+	
+	/**
+	 * Completes the future of a frame that is a notification awaiting its
+	 * outcome. Bare frames have no outcome to report.
+	 */
+	static void didComplete(ApnsFrame frame, int status) {
+		if (frame instanceof ApnsNotification) {
+			ApnsNotification notification = (ApnsNotification) frame;
+			notification.didComplete(PushResult.apns(notification, status));
+		}
+	}
+	
+	void send(ApnsFrame frame) {
+		if (is_shut_down) {
+			didComplete(frame, ApnsLink.HANGUP);
+			return;
+		}
+		if (redo_queue == null) {
+			socket_lock.lock();
+			try {
+				writeNotification(frame);
+			}
+			finally {
+				socket_lock.unlock();
+			}
+		}
+		else if (journal == null) {
+			redo_queue.enqueue(frame, frame.getIdentifier());
+			didEnqueue();
+		}
+		else {
+			final long seq;
+			synchronized (journal_lock) {
+				try {
+					if (is_shut_down) {
+						throw new IOException("Journal closed.");
+					}
+					frame.setJournalEnd(journal.append(frame.getIdentifier(),
+							frame.encodeFrame()));
+				}
+				catch (IOException e) {
+					System.out.println("Failed to journal notification.");
+					didComplete(frame, ApnsLink.HANGUP);
+					return;
+				}
+				seq = redo_queue.claim();
+			}
+			redo_queue.enqueue(seq, frame, frame.getIdentifier());
+			didEnqueue();
+		}
+	}
+	
+	/**
+	 * Wakes a low priority writer that holds back its burst once a full batch
+	 * is pending.
+	 */
+	private void didEnqueue() {
+		if ((urgent != null) && isBatchFull()) {
+			LockSupport.unpark(writer);
+		}
+	}
+	
+	/**
+	 * Waits until the rate limits allow a batch to be written. Permits are
+	 * taken before the batch is drained, so that the wait does not count
+	 * against the retention time of its entries. Must not be called while
+	 * holding the socket lock.
+	 * @param n the number of notifications pending
+	 * @return the number of notifications to drain
+	 */
+	private int pace(int n) {
+		n = Math.max(n, 1);
+		if (pacer != null) {
+			pacer.acquire(n);
+		}
+		if (global_pacer != null) {
+			global_pacer.acquire(n);
+		}
+		return n;
+	}
+	
+	/**
+	 * Returns the permits of notifications that were paced for but not
+	 * drained.
+	 */
+	private void unpace(int n) {
+		if (n <= 0) {
+			return;
+		}
+		if (pacer != null) {
+			pacer.release(n);
+		}
+		if (global_pacer != null) {
+			global_pacer.release(n);
+		}
+	}
+	
+	private void slowDown() {
+		if (pacer != null) {
+			pacer.slowDown();
+		}
+		if (global_pacer != null) {
+			global_pacer.slowDown();
+		}
+	}
+	
+	/**
+	 * Moves the consumed mark of the journal back to the notification named
+	 * in an error response, and resends the frames written after it if they
+	 * are no longer on the redo tape. Must be called while suspended.
+	 */
+	private void rewindJournal(int id, boolean is_resend) {
+		if (journal == null) {
+			return;
+		}
+		socket_lock.lock();
+		try {
+			long from = journal.find(id);
+			if (from == -1) {
+				System.out.println("Notification " + id + " not journaled.");
+			}
+			else if (is_resend) {
+				resendFromJournal(from, written_end);
+			}
+			else {
+				journal.setConsumed(from);
+			}
+		}
+		finally {
+			socket_lock.unlock();
+		}
+	}
+	
+	/**
+	 * Writes frames from the journal as they are, without tracking them for
+	 * confirmation. Must be called while holding the socket lock.
+	 */
+	private void resendFromJournal(long from, long to) {
+		if (from >= to) {
+			return;
+		}
+		try {
+			if (link == null) {
+				takeLink();
+			}
+			final OutputStream out = link.getOutputStream();
+			long done = journal.replay(from, to, new MappedJournal.Visitor() {
+				public void visit(int id, ByteBuffer frame) throws IOException {
+					int len = frame.remaining();
+					if ((frame_buf == null) || (frame_buf.length < len)) {
+						frame_buf = new byte[Math.max(len, DIRECT_BUF_SIZE)];
+					}
+					frame.get(frame_buf, 0, len);
+					out.write(frame_buf, 0, len);
+					last_written_id = id;
+					has_written = true;
+				}
+			});
+			out.flush();
+			has_unflushed = false;
+			journal.setConsumed(done);
+			written_end = Math.max(written_end, done);
+		}
+		catch (IOException e) {
+			didFailToWrite(null);
+		}
+	}
+	
+	private final class ConnectTask extends TimerTask {
+		public void run() {
+			connectStandby();
+		}
+	}
+	
+	/**
+	 * Schedules a standby link to be opened unless one is open or about to
+	 * be. Must be called while holding the socket lock.
+	 * @param delay the time to wait before connecting
+	 */
+	private void prepareStandby(long delay) {
+		if ((standby != null) || is_connecting || is_shut_down) {
+			return;
+		}
+		is_connecting = true;
+		connect_task = new ConnectTask();
+		connect_timer.schedule(connect_task, delay);
+	}
+	
+	/**
+	 * @return a random delay between half and all of an exponentially growing
+	 * backoff
+	 */
+	private static long backOffMillis(int n_failed) {
+		long cap = Math.min((long) MIN_BACKOFF_MILLIS << Math.min(n_failed,
+				16), MAX_BACKOFF_MILLIS);
+		return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+	}
+	
+	/**
+	 * Connects and handshakes a standby link without holding the socket lock,
+	 * so that senders are not held up.
+	 */
+	private void connectStandby() {
+		ApnsLink fresh = null;
+		try {
+			fresh = openLink();
+		}
+		catch (IOException e) { }
+		socket_lock.lock();
+		try {
+			is_connecting = false;
+			connect_task = null;
+			if (is_shut_down) {
+				if (fresh != null) {
+					fresh.close();
+				}
+			}
+			else if (fresh == null) {
+				if (n_failed ++ == 0) {
+					System.out.println("Failed to open standby connection.");
+				}
+				prepareStandby(backOffMillis(n_failed));
+			}
+			else {
+				standby = fresh;
+			}
+		}
+		finally {
+			socket_lock.unlock();
+		}
+	}
+	
+	/**
+	 * Replaces the closed link with the standby link, or connects inline if
+	 * no standby is ready, and prepares the next standby. Must be called
+	 * while holding the socket lock.
+	 */
+	private void takeLink() throws IOException {
+		ApnsLink taken = standby;
+		standby = null;
+		if (taken != null) {
+			n_failed = 0;
+		}
+		prepareStandby(0);
+		link = (taken != null) ? taken : openLink();
+		observer = link;
+	}
+	
+	private ApnsLink openLink() throws IOException {
+		if (transport == null) {
+			return new SocketLink(gateway.socketConnect(), batch_size, this);
+		}
+		else {
+			return transport.connect(gateway, batch_size, this);
+		}
+	}
+	
+	/**
+	 * Writes a batch of frames drained from the redo tape. The rest of the
+	 * batch is discarded once the tape was rewound, as it will be drained
+	 * again.
+	 */
+	private void writeBatch(List<ApnsFrame> batch) {
+		socket_lock.lock();
+		try {
+			for (ApnsFrame frame : batch) {
+				while (is_suspended && (! is_shut_down)) {
+					resumed.awaitUninterruptibly();
+				}
+				if (is_shut_down || redo_queue.isStale()) {
+					return;
+				}
+				writeNotification(frame);
+				written_end = frame.getJournalEnd();
+			}
+			redo_queue.markWritten();
+			if ((journal != null) && (written_end >= 0)) {
+				journal.setConsumed(written_end);
+			}
+			if ((link != null) && (! is_flush_scheduled)) {
+				flush_timer.schedule(new FlushTask(), max_delay_millis);
+				is_flush_scheduled = true;
+			}
+		}
+		finally {
+			socket_lock.unlock();
+		}
+	}
+	
+	private void writeNotification(ApnsFrame frame) {
+		if ((redo_queue == null) && (getErrorCode() != ApnsLink.OK)) {
+			closeLink();
+		}
+		final boolean is_awaited = (frame instanceof ApnsNotification) &&
+				((ApnsNotification) frame).isAwaited();
+		try {
+			if (link == null) {
+				takeLink();
+			}
+			OutputStream out = link.getOutputStream();
+			if (is_awaited) {
+				unconfirmed.add(new Unconfirmed((ApnsNotification) frame,
+						link));
+				scheduleConfirm();
+			}
+			frame.writeToOutputStream(out);
+			if (redo_queue == null) {
+				out.flush();
+				last_direct = frame;
+			}
+			else {
+				last_written_id = frame.getIdentifier();
+				has_written = true;
+				if (! has_unflushed) {
+					first_unflushed_id = last_written_id;
+					has_unflushed = true;
+				}
+			}
+		}
+		catch (IOException e) {
+			if (redo_queue == null) {
+				if ((link == null) && is_awaited) {
+					didComplete(frame, ApnsLink.HANGUP);
+				}
+				didFailToWrite(null);
+			}
+			else {
+				didFailToWrite(frame);
+			}
+		}
+	}
+}
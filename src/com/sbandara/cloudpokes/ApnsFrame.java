@@ -0,0 +1,43 @@
+package com.sbandara.cloudpokes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import com.sbandara.cloudpokes.util.PacketBuilder;
+
+/**
+ * An entry of the redo tape of an APNS connection, which can encode its frame
+ * as often as it is written. Notifications are frames, and so are the bare
+ * entries that {@code NotificationTemplate.broadcast} creates, which hold no
+ * more than the template, the token and the identifier.
+ */
+interface ApnsFrame {
+
+	int getIdentifier();
+
+	DeviceToken getToken();
+
+	int getPriority();
+
+	/**
+	 * @return the end of the frame in the journal, or -1 if it was not
+	 * journaled
+	 */
+	long getJournalEnd();
+
+	void setJournalEnd(long journal_end);
+
+	/**
+	 * Writes the items of the frame to a builder.
+	 */
+	void writeFrame(PacketBuilder builder) throws IOException;
+
+	void writeToOutputStream(OutputStream out) throws IOException;
+
+	/**
+	 * @return a read-only view of the encoded frame, which is only valid
+	 * until the calling thread encodes the next frame
+	 */
+	ByteBuffer encodeFrame() throws IOException;
+}
@@ -2,8 +2,11 @@ package com.sbandara.cloudpokes;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.security.*;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import javax.net.ssl.*;
 
@@ -69,8 +72,18 @@ public abstract class ApnsGateway extends ServiceConnector {
 		public abstract String getCertPhrase();
 	}
 	
-	private KeyManager[] key_managers = null;
-	private SSLSocketFactory socket_factory = null;
+	private final static int SESSION_CACHE_SIZE = 64,
+			SESSION_TIMEOUT_SECS = 24 * 3600;
+	
+	/**
+	 * SSL contexts by configuration, shared by all gateways of the process,
+	 * so that the keystore is decrypted once and TLS sessions are resumed
+	 * across reconnects. Configurations are compared by identity unless they
+	 * define {@code equals}, and are held weakly.
+	 */
+	private final static Map<ApnsConfig, SSLContext> contexts =
+			new WeakHashMap<ApnsConfig, SSLContext>();
+	
 	private final ApnsConfig config;
 	private final Service service;
 	
@@ -79,59 +92,86 @@ public abstract class ApnsGateway extends ServiceConnector {
 		this.service = service;
 	}
 	
-	private KeyManager[] getKeyManagers(InputStream certificate,
+	private static KeyManager[] getKeyManagers(InputStream certificate,
 			String passphrase) throws IOException {
-		if (key_managers == null) {
-			KeyStore ks;
-			try {
-				ks = KeyStore.getInstance("PKCS12");
-			}
-			catch (KeyStoreException e) {
-				throw new RuntimeException("Unable to create key store.");
-			}
-	    	char certphrase[] = passphrase.toCharArray();
-	    	try {
-	    		ks.load(certificate, certphrase);
-	    	}
-	    	catch (GeneralSecurityException e) {
-				throw new RuntimeException("Bad certificate or unknown type.");
-	    	}
-	    	finally {
-	    		closeQuietly(certificate);
-	    	}
-	    	KeyManagerFactory kmf;
-	    	try {
-	    		kmf = KeyManagerFactory.getInstance(KeyManagerFactory
-	    				.getDefaultAlgorithm());
-	    		kmf.init(ks, certphrase);
-	    	}
-	    	catch (GeneralSecurityException e) {
-	    		throw new RuntimeException(e.getMessage());
-	    	}
-	    	key_managers = kmf.getKeyManagers();
-		}
-    	return key_managers;
+		KeyStore ks;
+		try {
+			ks = KeyStore.getInstance("PKCS12");
+		}
+		catch (KeyStoreException e) {
+			throw new RuntimeException("Unable to create key store.");
+		}
+		char certphrase[] = passphrase.toCharArray();
+		try {
+			ks.load(certificate, certphrase);
+		}
+		catch (GeneralSecurityException e) {
+			throw new RuntimeException("Bad certificate or unknown type.");
+		}
+		finally {
+			closeQuietly(certificate);
+		}
+		KeyManagerFactory kmf;
+		try {
+			kmf = KeyManagerFactory.getInstance(KeyManagerFactory
+					.getDefaultAlgorithm());
+			kmf.init(ks, certphrase);
+		}
+		catch (GeneralSecurityException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+		return kmf.getKeyManagers();
 	}
 	
-	private Socket secureConnect() throws IOException {
-		if (socket_factory == null) {
-			try {
-				SSLContext context = SSLContext.getInstance("TLS");
-				context.init(getKeyManagers(config.getCertFile(), config
-						.getCertPhrase()), null, sec_rnd);
-				socket_factory = context.getSocketFactory();
-			}
-			catch (GeneralSecurityException security_exception) {
-				throw new IOException("Failed to create SSL socket factory.");
-			}
-			catch (IOException io_exception) {
-				throw new IOException("Failed to read APNS certificate.");
+	SSLContext getContext() throws IOException {
+		synchronized (contexts) {
+			SSLContext context = contexts.get(config);
+			if (context == null) {
+				try {
+					context = SSLContext.getInstance("TLS");
+					context.init(getKeyManagers(config.getCertFile(), config
+							.getCertPhrase()), null, sec_rnd);
+				}
+				catch (GeneralSecurityException security_exception) {
+					throw new IOException("Failed to create SSL socket " +
+							"factory.");
+				}
+				catch (IOException io_exception) {
+					throw new IOException("Failed to read APNS certificate.");
+				}
+				SSLSessionContext sessions = context.getClientSessionContext();
+				sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+				sessions.setSessionTimeout(SESSION_TIMEOUT_SECS);
+				contexts.put(config, context);
 			}
+			return context;
+		}
+	}
+	
+	/**
+	 * Drops the cached credentials of a configuration, for example after its
+	 * certificate was renewed. Connections opened afterwards load the
+	 * certificate again and perform a full handshake.
+	 * @param config the configuration whose credentials to drop
+	 */
+	public static void invalidateCredentials(ApnsConfig config) {
+		synchronized (contexts) {
+			contexts.remove(config);
 		}
+	}
+	
+	private Socket secureConnect() throws IOException {
 		SSLSocket ssl_socket = null;
-		ssl_socket = (SSLSocket) socket_factory.createSocket(config
-				.getHostname(service), config.getPort(service));
+		ssl_socket = (SSLSocket) getContext().getSocketFactory().createSocket(
+				config.getHostname(service), config.getPort(service));
 		ssl_socket.setUseClientMode(true);
+		try {
+			ssl_socket.startHandshake();
+		}
+		catch (IOException e) {
+			closeQuietly(ssl_socket);
+			throw e;
+		}
 		return ssl_socket;
 	}
 	
@@ -144,4 +184,25 @@ public abstract class ApnsGateway extends ServiceConnector {
 			return secureConnect();
 		}
 	}
+	
+	InetSocketAddress getAddress() {
+		return new InetSocketAddress(config.getHostname(service), config
+				.getPort(service));
+	}
+	
+	/**
+	 * Creates a client-mode {@code SSLEngine} for connections to the service
+	 * that are not backed by a socket of their own.
+	 * @return the engine, or {@code null} if the service is not secured
+	 * @throws IOException if the APNS certificate could not be loaded
+	 */
+	SSLEngine createEngine() throws IOException {
+		if (config.getCertPhrase() == null) {
+			return null;
+		}
+		SSLEngine engine = getContext().createSSLEngine(config.getHostname(
+				service), config.getPort(service));
+		engine.setUseClientMode(true);
+		return engine;
+	}
 }
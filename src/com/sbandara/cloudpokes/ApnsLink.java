@@ -0,0 +1,64 @@
+package com.sbandara.cloudpokes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A transport-level connection to the APNS dispatch service. Frames are
+ * written to the output stream of the link, and the link reports when it was
+ * closed by APNS, along with the error response if one was received.
+ */
+abstract class ApnsLink {
+	
+	final static int OK = 0, BAD_TOKEN = 8, SHUTDOWN = 10, HANGUP = 1024;
+	final static int ERROR_BUF_SIZE = 6, ERROR_HEADER = 8;
+	
+	interface Listener {
+		public void linkDidClose(ApnsLink link);
+	}
+	
+	private final Listener listener;
+	private volatile int error_code = OK, last_sent_id = 0;
+	
+	protected ApnsLink(Listener listener) {
+		this.listener = listener;
+	}
+	
+	int getLastSentId() { return last_sent_id; }
+	
+	int getErrorCode() { return error_code; }
+	
+	boolean didReceiveResponse() {
+		return (error_code != OK) && (error_code != HANGUP);
+	}
+	
+	abstract OutputStream getOutputStream() throws IOException;
+	
+	abstract void close();
+	
+	/**
+	 * Parses a complete error response and records its status code and
+	 * notification identifier.
+	 * @param pack the six bytes of the error response
+	 */
+	protected final void didReceiveResponse(byte[] pack) {
+		if (pack[0] != ERROR_HEADER) {
+			System.out.println("Unexpected response from APNS.");
+		}
+		else {
+			last_sent_id = ApnsPushSender.bytesToInteger(pack, 2);
+			error_code = pack[1];
+		}
+	}
+	
+	/**
+	 * Reports to the listener that APNS closed this link. Implementations must
+	 * not call this method from a thread that writes frames.
+	 */
+	protected final void didClose() {
+		if (error_code == OK) {
+			error_code = HANGUP;
+		}
+		listener.linkDidClose(this);
+	}
+}
@@ -2,23 +2,58 @@ package com.sbandara.cloudpokes;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.eclipsesource.json.JsonObject;
 import com.sbandara.cloudpokes.util.PacketBuilder;
 
-final class ApnsNotification extends Notification {
+final class ApnsNotification extends Notification implements ApnsFrame {
 
 	final static byte CMD_SEND = 2, ID_TOKEN = 1, ID_PAYLOAD = 2,
 			ID_IDENTIFIER = 3, ID_EXPIRATION = 4, ID_PRIORITY = 5;
 
 	private final int identifier;
+	private long journal_end = -1;
 
 	private final static AtomicInteger id_gen = new AtomicInteger(1);
+	
+	private final static int FRAME_BUF_SIZE = 4096, FRAME_OVERHEAD = 61,
+			MAX_FRAME_SIZE = 0xffff + FRAME_OVERHEAD;
+	
+	private final static ThreadLocal<PacketBuilder> frame_builder =
+			new ThreadLocal<PacketBuilder>() {
+		@Override
+		protected PacketBuilder initialValue() {
+			return new PacketBuilder(FRAME_BUF_SIZE);
+		}
+	};
 
-	ApnsNotification(DeviceToken token) {
-		super(token);
-		identifier = id_gen.incrementAndGet();
+	ApnsNotification(DeviceToken token, NotificationTemplate template) {
+		super(token, template);
+		identifier = nextIdentifier();
+	}
+	
+	static int nextIdentifier() { return id_gen.incrementAndGet(); }
+	
+	public int getIdentifier() { return identifier; }
+	
+	public long getJournalEnd() { return journal_end; }
+	
+	public void setJournalEnd(long journal_end) {
+		this.journal_end = journal_end;
+	}
+	
+	/**
+	 * Advances the identifier generator past identifiers that were handed out
+	 * before a restart, so that rewinds do not confuse old and new frames.
+	 */
+	static void skipIdentifiers(int last_id) {
+		int id;
+		while ((id = id_gen.get()) < last_id) {
+			id_gen.compareAndSet(id, last_id);
+		}
 	}
 	
 	@Override
@@ -35,23 +70,94 @@ final class ApnsNotification extends Notification {
 		if (sound != null) {
 			aps.add("sound", sound);
 		}
-		json_payload.add("aps", aps);		
+		if (getBadge() >= 0) {
+			aps.add("badge", getBadge());
+		}
+		json_payload.set("aps", aps);		
 	}
 	
-	@Override
-	void writeToOutputStream(OutputStream out) throws IOException {
-		byte[] payload = jsonToByteArray(json_payload);
-		final int packet_len = payload.length + 61;
-		PacketBuilder builder = new PacketBuilder(packet_len);
-		out.write(builder.putArrayItem(ID_TOKEN, getToken().getApnsToken())
-				.putArrayItem(ID_PAYLOAD, payload)
-				.putIntItem(ID_IDENTIFIER, identifier)
+	/**
+	 * Encodes a frame in the builder of the calling thread, or in a builder
+	 * of its own if it exceeds that buffer.
+	 */
+	static PacketBuilder buildFrame(ApnsFrame frame) throws IOException {
+		PacketBuilder builder = frame_builder.get().reset();
+		try {
+			frame.writeFrame(builder);
+		}
+		catch (BufferOverflowException e) {
+			builder = new PacketBuilder(MAX_FRAME_SIZE);
+			frame.writeFrame(builder);
+		}
+		return builder;
+	}
+	
+	/**
+	 * @param frame an encoded frame, from its position on
+	 * @return the device token of the frame, which is its first item
+	 */
+	static DeviceToken tokenOfFrame(ByteBuffer frame) {
+		ByteBuffer view = frame.duplicate();
+		view.position(view.position() + 6);
+		byte[] token = new byte[view.getShort() & 0xffff];
+		view.get(token);
+		return DeviceToken.apnsToken(token);
+	}
+	
+	/**
+	 * Writes the items that follow the payload, and finishes the frame.
+	 */
+	static void finishFrame(PacketBuilder builder, ApnsFrame frame) {
+		builder.putIntItem(ID_IDENTIFIER, frame.getIdentifier())
 				.putIntItem(ID_EXPIRATION, 0)
-				.putByteItem(ID_PRIORITY, (byte) 10).build());
+				.putByteItem(ID_PRIORITY, (byte) frame.getPriority()).finish();
+	}
+	
+	@Override
+	byte[] encode() {
+		try {
+			ByteBuffer view = buildFrame(this).view();
+			byte[] frame = new byte[view.remaining()];
+			view.get(frame);
+			return frame;
+		}
+		catch (IOException e) {
+			throw new RuntimeException();
+		}
+	}
+	
+	/**
+	 * @return the frame encoded when the notification was sealed, or a new
+	 * encoding if it was never sealed
+	 */
+	private byte[] getFrame() {
+		byte[] frame = getEncoded();
+		return (frame == null) ? encode() : frame;
+	}
+	
+	@Override
+	public void writeToOutputStream(OutputStream out) throws IOException {
+		out.write(getFrame());
+	}
+	
+	public ByteBuffer encodeFrame() {
+		return ByteBuffer.wrap(getFrame()).asReadOnlyBuffer();
+	}
+	
+	public void writeFrame(PacketBuilder builder) throws IOException {
+		builder.putLongArrayItem(ID_TOKEN, getToken().getApnsWords());
+		if (template == null) {
+			json_payload.writeTo(builder.beginItem(ID_PAYLOAD));
+			builder.endItem();
+		}
+		else {
+			template.writeApnsPayload(builder, this);
+		}
+		finishFrame(builder, this);
 	}
 
 	@Override
 	void dispatch() {
-		ApnsPushSender.getInstance().sendNotification(this);
+		ApnsPushSender.getInstance().sendFrame(this);
 	}
 }
@@ -1,22 +1,47 @@
 package com.sbandara.cloudpokes;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.Socket;
 import java.nio.ByteBuffer;
-import java.util.concurrent.locks.ReentrantLock;
+
+import com.sbandara.cloudpokes.util.MappedJournal;
+import com.sbandara.cloudpokes.util.TokenBucket;
 
 public final class ApnsPushSender extends ApnsGateway {
 	
-	private final ReentrantLock socket_lock = new ReentrantLock();
-	private Socket socket = null;
-	private ErrorReceiver observer = new ErrorReceiver();
+	private final ApnsConnection[] connections, low_connections;
+	private final NioApnsTransport transport;
+	private volatile InactiveTokenFilter inactive_tokens = null;
+	private volatile ApnsLink last_error = null;
 	
 	public static boolean is_debug = false;
 	private static ApnsPushSender the_instance = null;
+	private final static String URGENT_JOURNAL = "conn-", LOW_JOURNAL =
+			"low-";
 	
 	public static void configure(ApnsConfig config) {
-		the_instance = new ApnsPushSender(config);
+		replaceInstance(new ApnsPushSender(config, null));
+	}
+	
+	/**
+	 * Configures the sender for pipelined dispatch. Notifications are written
+	 * by a background worker and kept on a redo tape, so that those streamed
+	 * after a notification rejected by APNS are resent on a new connection.
+	 * If more than one connection is requested, notifications are routed by
+	 * a hash of their device token, which preserves per-device ordering.
+	 * @param config the APNS gateway configuration
+	 * @param options the number of connections, and the size and retention
+	 * time of the redo tape of each connection
+	 */
+	public static void configure(ApnsConfig config, DispatchOptions options) {
+		replaceInstance(new ApnsPushSender(config, options));
+	}
+	
+	private static synchronized void replaceInstance(ApnsPushSender sender) {
+		if (the_instance != null) {
+			the_instance.shutdown();
+		}
+		the_instance = sender;
 	}
 	
 	public static ApnsPushSender getInstance() {
@@ -26,103 +51,281 @@ public final class ApnsPushSender extends ApnsGateway {
 		return the_instance;
 	}
 			
-	private ApnsPushSender(ApnsConfig config) {
+	private ApnsPushSender(ApnsConfig config, DispatchOptions options) {
 		super(config, Service.DISPATCH);
+		int n_conn = (options == null) ? 1 : options.getConnections();
+		NioApnsTransport transport = null;
+		if ((options != null) && (options.isNonBlocking())) {
+			try {
+				transport = new NioApnsTransport();
+			}
+			catch (IOException e) {
+				throw new RuntimeException("Failed to open selector.");
+			}
+		}
+		this.transport = transport;
+		TokenBucket global_pacer = null;
+		if ((options != null) && (options.getGlobalRate() > 0)) {
+			global_pacer = new TokenBucket(options.getGlobalRate(), options
+					.getGlobalBurst(), ApnsConnection.RATE_RECOVERY_MILLIS);
+		}
+		boolean has_low_lane = (options != null) && options
+				.hasLowPriorityLane();
+		MappedJournal[] journals = new MappedJournal[n_conn],
+				low_journals = has_low_lane ? new MappedJournal[n_conn] : null;
+		for (int k = 0; k < n_conn; k ++) {
+			journals[k] = openJournal(options, URGENT_JOURNAL + k);
+			if (has_low_lane) {
+				low_journals[k] = openJournal(options, LOW_JOURNAL + k);
+			}
+		}
+		if ((options != null) && (options.getJournalDir() != null)) {
+			adoptJournals(options, journals, low_journals);
+		}
+		connections = new ApnsConnection[n_conn];
+		for (int k = 0; k < n_conn; k ++) {
+			connections[k] = new ApnsConnection(this, options, transport,
+					journals[k], global_pacer, null);
+		}
+		if (! has_low_lane) {
+			low_connections = null;
+			return;
+		}
+		low_connections = new ApnsConnection[n_conn];
+		for (int k = 0; k < n_conn; k ++) {
+			low_connections[k] = new ApnsConnection(this, options, transport,
+					low_journals[k], global_pacer, connections[k]);
+		}
 	}
 
-	static int bytesToInteger(byte[] buf, int off) {
-		return ByteBuffer.wrap(buf, off, 4).getInt();
-	}
-
-	static private class ErrorReceiver extends Thread {
-		
-		final static int OK = 0, HANGUP = 1024;
-		
-		private InputStream input_stream = null;
-		private int error_code = OK, last_sent_id = 0;
-		
-		int getLastSentId() { return last_sent_id; }
-		
-		int getErrorCode() { return error_code; }
-		
-		void setInputStream(InputStream input_stream) {
-			this.input_stream = input_stream;
-		}
-		
-		private final static int ERROR_BUF_SIZE = 6, ERROR_HEADER = 8;
-				
-		@Override
-		public void run() {
-			if (input_stream == null) {
-				throw new IllegalStateException("No input stream assigned.");
+	/**
+	 * Moves the unsent frames of journals that no connection owns, because
+	 * the sender was configured with more connections or a low priority lane
+	 * before, to the journals of the connections their tokens are routed to
+	 * now. The journals of the connections are forced before the moved
+	 * frames are marked consumed in the journals they came from.
+	 */
+	private static void adoptJournals(DispatchOptions options,
+			final MappedJournal[] journals, MappedJournal[] low_journals) {
+		File[] dirs = options.getJournalDir().listFiles();
+		if (dirs == null) {
+			return;
+		}
+		for (File dir : dirs) {
+			String name = dir.getName();
+			MappedJournal[] lane = journals;
+			if (name.startsWith(LOW_JOURNAL) && (low_journals != null)) {
+				lane = low_journals;
+			}
+			if (! isSurplusJournal(name, journals.length, low_journals !=
+					null)) {
+				continue;
 			}
+			final MappedJournal[] target = lane;
+			MappedJournal surplus = openJournal(options, name);
 			try {
-				byte[] pack = new byte[ERROR_BUF_SIZE];
-				int n_byte, off = 0;
-				while (off < pack.length) {
-					n_byte = input_stream.read(pack, off, pack.length - off);
-					if (n_byte == -1) {
-						throw new IOException("Connection dropped.");
+				long done = surplus.replay(surplus.getConsumed(), surplus
+						.getEnd(), new MappedJournal.Visitor() {
+					public void visit(int id, ByteBuffer frame)
+							throws IOException {
+						target[route(ApnsNotification.tokenOfFrame(frame),
+								target.length)].append(id, frame);
 					}
-					off += n_byte;
-				}
-				if (pack[0] != ERROR_HEADER) {
-					System.out.println("Unexpected response from APNS.");
-					return;
+				});
+				for (MappedJournal journal : target) {
+					journal.force();
 				}
-				error_code = pack[1];
-				last_sent_id = bytesToInteger(pack, 2);
+				surplus.setConsumed(done);
 			}
 			catch (IOException e) {
-				System.out.println(e.getMessage());
-				if (error_code == 0) {
-					error_code = HANGUP;
-				}
-				return;
+				throw new RuntimeException("Failed to adopt journal.");
+			}
+			finally {
+				surplus.close();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the named journal belongs to a connection beyond the
+	 * configured number, or to a low priority lane that was not configured
+	 */
+	private static boolean isSurplusJournal(String name, int n_conn,
+			boolean has_low_lane) {
+		String index;
+		if (name.startsWith(URGENT_JOURNAL)) {
+			index = name.substring(URGENT_JOURNAL.length());
+		}
+		else if (name.startsWith(LOW_JOURNAL)) {
+			index = name.substring(LOW_JOURNAL.length());
+			if (! has_low_lane) {
+				n_conn = 0;
+			}
+		}
+		else {
+			return false;
+		}
+		try {
+			return Integer.parseInt(index) >= n_conn;
+		}
+		catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static MappedJournal openJournal(DispatchOptions options,
+			String name) {
+		if ((options == null) || (options.getJournalDir() == null)) {
+			return null;
+		}
+		try {
+			MappedJournal journal = new MappedJournal(new File(options
+					.getJournalDir(), name), options.getSegmentSize(),
+					options.getMaxSegments());
+			ApnsNotification.skipIdentifiers(journal.getLastId());
+			return journal;
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Failed to open journal.");
+		}
+	}
+
+	/**
+	 * Stops all dispatch connections, closing their links and journals, and
+	 * the selector thread in non-blocking mode. Notifications sent afterwards
+	 * fail with a hangup. The sender is shut down when it is replaced by
+	 * {@code configure}.
+	 */
+	public void shutdown() {
+		if (low_connections != null) {
+			for (ApnsConnection connection : low_connections) {
+				connection.shutdown();
 			}
 		}
+		for (ApnsConnection connection : connections) {
+			connection.shutdown();
+		}
+		if (transport != null) {
+			transport.close();
+		}
+	}
+
+	static int bytesToInteger(byte[] buf, int off) {
+		return ByteBuffer.wrap(buf, off, 4).getInt();
+	}
+	
+	void didReceiveError(ApnsLink link) {
+		last_error = link;
+	}
+	
+	/**
+	 * @return the identifier reported with the last error response on any
+	 * dispatch connection, or zero if none was received
+	 */
+	public int getLastSentId() {
+		ApnsLink link = last_error;
+		return (link == null) ? 0 : link.getLastSentId();
 	}
-		
-	public int getLastSentId() { return observer.getLastSentId(); }
 	
-	public int getErrorCode() { return observer.getErrorCode(); }
+	/**
+	 * @return the status code of the last error response on any dispatch
+	 * connection, or zero if none was received
+	 */
+	public int getErrorCode() {
+		ApnsLink link = last_error;
+		return (link == null) ? ApnsLink.OK : link.getErrorCode();
+	}
 	
-	private void closeSocket() {
-		closeQuietly(socket);
-		socket = null;		
+	/**
+	 * @return the number of dispatch connections of both lanes
+	 */
+	public int getConnectionCount() {
+		return connections.length + ((low_connections == null) ? 0 :
+				low_connections.length);
 	}
 	
-	void sendNotification(Notification notification) {
+	/**
+	 * Connections are indexed from zero, first those of the urgent lane, and
+	 * then those of the low priority lane, if any.
+	 */
+	ApnsConnection getConnection(int k) {
+		if ((k >= connections.length) && (low_connections != null)) {
+			return low_connections[k - connections.length];
+		}
+		return connections[k];
+	}
+	
+	/**
+	 * @param k the index of the connection, below {@code getConnectionCount}
+	 * @return the identifier reported with the last error response on the
+	 * current link of the connection, or zero if none was received
+	 */
+	public int getLastSentId(int k) { return getConnection(k).getLastSentId(); }
+	
+	/**
+	 * @param k the index of the connection, below {@code getConnectionCount}
+	 * @return the status code of the last error response on the current link
+	 * of the connection, zero if none was received, or {@code
+	 * PushResult.HANGUP} if the link was lost without one
+	 */
+	public int getErrorCode(int k) { return getConnection(k).getErrorCode(); }
+	
+	private ApnsConnection connectionFor(ApnsFrame frame) {
+		ApnsConnection[] lane = connections;
+		if ((low_connections != null) && (frame.getPriority() ==
+				Notification.PRIORITY_POWER_SAVING)) {
+			lane = low_connections;
+		}
+		return lane[route(frame.getToken(), lane.length)];
+	}
+	
+	/**
+	 * @return the index of the connection that notifications to a device
+	 * are sent on
+	 */
+	private static int route(DeviceToken token, int n_conn) {
+		if (n_conn == 1) {
+			return 0;
+		}
+		return (token.hashCode() & Integer.MAX_VALUE) % n_conn;
+	}
+	
+	/**
+	 * Drops notifications to tokens that are known to be inactive before they
+	 * are encoded, and records tokens that APNS rejects as invalid.
+	 * @param filter the filter of inactive tokens, or null to send to all
+	 * tokens
+	 * @return this sender for fluent configuration
+	 */
+	public ApnsPushSender setInactiveTokenFilter(InactiveTokenFilter filter) {
+		inactive_tokens = filter;
+		return this;
+	}
+	
+	public InactiveTokenFilter getInactiveTokenFilter() {
+		return inactive_tokens;
+	}
+	
+	void didRejectToken(DeviceToken token) {
+		InactiveTokenFilter filter = inactive_tokens;
+		if (filter != null) {
+			filter.add(token);
+		}
+	}
+	
+	void sendFrame(ApnsFrame frame) {
+		InactiveTokenFilter filter = inactive_tokens;
+		if ((filter != null) && filter.isInactive(frame.getToken())) {
+			ApnsConnection.didComplete(frame, ApnsLink.BAD_TOKEN);
+			return;
+		}
 		if (is_debug) {
 			try {
-				notification.writeToOutputStream(System.out);
+				frame.writeToOutputStream(System.out);
 				return;
 			}
 			catch (IOException e) { }
 		}
-		socket_lock.lock();
-		try {
-			int last_error = observer.getErrorCode();
-			if (last_error != 0) {
-				closeSocket();
-			}
-			try {
-				if (socket == null) {
-					socket = socketConnect();
-					socket.setSoTimeout(0);
-					observer = new ErrorReceiver();
-					observer.setInputStream(socket.getInputStream());
-					observer.start();
-				}
-				notification.writeToOutputStream(socket.getOutputStream());
-			}
-			catch (IOException e) {
-				closeSocket();
-				System.out.println("Failed to dispatch notification.");
-			}
-		}
-		finally {
-			socket_lock.unlock();
-		}
+		connectionFor(frame).send(frame);
 	}
 }
@@ -1,6 +1,6 @@
 package com.sbandara.cloudpokes;
 
-public final class AsyncRedoBlockingQueue {
+public final class AsyncRedoBlockingQueue implements RedoQueue {
 	
 	public AsyncRedoBlockingQueue(int size, int history_millis) {
 		tape_length = size;
@@ -36,6 +36,17 @@ public final class AsyncRedoBlockingQueue {
 	private final Consumer consumer = new Consumer();
 	private Thread worker = null;
 	
+	private volatile Runnable idle_listener = null;
+	
+	/**
+	 * Registers an action that the consumer runs whenever it has executed all
+	 * queued entries and is about to go idle.
+	 * @param listener the action to run, or null to unregister
+	 */
+	public void setIdleListener(Runnable listener) {
+		idle_listener = listener;
+	}
+	
 	private int inc(int k) {
 		if (++ k == tape_length) {
 			k = 0;
@@ -43,44 +54,51 @@ public final class AsyncRedoBlockingQueue {
 		return k;
 	}
 
-	synchronized public void enqueue(Runnable action, int id) {
+	private final Object producer_lock = new Object();
+
+	public void enqueue(Runnable action, int id) {
 		boolean was_interrupted = false;
-		synchronized (tape) {
-			head = inc(head);
-			while (head == tail) {
-				try {
-					tape.wait();
-				}
-				catch (InterruptedException e) {
-					was_interrupted = true;
+		synchronized (producer_lock) {
+			int next = inc(head);
+			synchronized (tape) {
+				while (next == tail) {
+					try {
+						tape.wait();
+					}
+					catch (InterruptedException e) {
+						was_interrupted = true;
+					}
 				}
 			}
-		}
-		if ((tape[head] != null) && (tape[head].run != 0)) {
-			for (;;) {
-				long elapsed = System.currentTimeMillis() - tape[head].run;
-				if (elapsed > min_retain_millis) {
-					break;
-				}
-				try {
-					Thread.sleep(min_retain_millis - elapsed + 1);
-				}
-				catch (InterruptedException e) {
-					was_interrupted = true;
+			if ((tape[next] != null) && (tape[next].run != 0)) {
+				for (;;) {
+					long elapsed = System.currentTimeMillis() - tape[next].run;
+					if (elapsed > min_retain_millis) {
+						break;
+					}
+					try {
+						Thread.sleep(min_retain_millis - elapsed + 1);
+					}
+					catch (InterruptedException e) {
+						was_interrupted = true;
+					}
 				}
 			}
-		}
-		synchronized (consumer) {
-			tape[head] = new Entry(action, id);
-			if (worker == null) {
-				worker = new Thread(consumer);
-				worker.start();
+			synchronized (this) {
+				head = next;
+				synchronized (consumer) {
+					tape[head] = new Entry(action, id);
+					if (worker == null) {
+						worker = new Thread(consumer);
+						worker.start();
+					}
+				}
+				last_id = id;
 			}
 		}
 		if (was_interrupted) {
 			Thread.currentThread().interrupt();
 		}
-		last_id = id;
 	}
 	
 	private final class Consumer implements Runnable {
@@ -92,6 +110,24 @@ public final class AsyncRedoBlockingQueue {
 					tape.notify();
 				}
 				tape[tail].execute();
+				synchronized (consumer) {
+					if (Thread.interrupted()) {
+						worker = null;
+						consumer.notify();
+						return;
+					}
+					if (hasJobs()) {
+						continue;
+					}
+				}
+				if (idle_listener != null) {
+					try {
+						idle_listener.run();
+					}
+					catch (RuntimeException e) {
+						System.out.println("Unhandled Exception.");
+					}
+				}
 				synchronized (consumer) {
 					if ((Thread.interrupted()) || (! hasJobs())) {
 						worker = null;
@@ -135,7 +171,9 @@ public final class AsyncRedoBlockingQueue {
 					}
 				}
 			}
-			tail = idx;
+			synchronized (tape) {
+				tail = idx;
+			}
 			for (int k = inc(tail); k != inc(head); k = inc(k)) {
 				if (tape[k].run == 0) {
 					break;
@@ -150,7 +188,7 @@ public final class AsyncRedoBlockingQueue {
 		}
 	}
 	
-	public synchronized void purgeQueue() {
+	public void purgeQueue() {
 		boolean was_interrupted = false;
 		synchronized (consumer) {
 			while (worker != null) {
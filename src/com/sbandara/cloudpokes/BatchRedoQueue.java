@@ -0,0 +1,482 @@
+package com.sbandara.cloudpokes;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A typed redo queue for many producers and a single consumer, which takes
+ * entries in batches. Entries live in a ring of preallocated slots that
+ * producers claim by sequence number. Drained entries are retained for
+ * replay until a producer reclaims their slot, which it does once the entry
+ * was released, or after the retention time. The retention time adapts to
+ * the observed latency of rewinds, and the ring grows up to a maximum size
+ * rather than block producers. A ring that cannot grow is never swapped, so
+ * producers then append with no more than a fetch-and-add and a CAS.
+ * <p>
+ * {@code rewind} moves the consumer back to the entry after a given one, no
+ * matter in which batch that entry was drained. The consumer should check
+ * {@code isStale} while it processes a batch, and discard the rest of the
+ * batch once it returns true, as those entries will be drained again.
+ * @param <T> the type of entries
+ */
+public final class BatchRedoQueue<T> {
+
+	private final static long PENDING = 0, RECLAIMING = -1;
+	private final static int SPINS = 100, MIN_RETAIN_MILLIS = 50,
+			MAX_PARK_MILLIS = 10;
+
+	private final static class Slot<T> {
+		T item = null;
+		int id = 0;
+		long seq;
+		volatile long run = 1;
+
+		Slot(long seq) {
+			this.seq = seq;
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private final static AtomicLongFieldUpdater<Slot> slot_run =
+			AtomicLongFieldUpdater.newUpdater(Slot.class, "run");
+
+	private volatile Slot<T>[] slots;
+	private final int max_capacity;
+	private final boolean is_fixed;
+	private final long max_retain_millis;
+	private volatile long retain_millis, released = 0;
+	private long latency = -1;
+	private final AtomicLong claim = new AtomicLong(0);
+	private final StampedLock grow_lock = new StampedLock();
+	private final ReentrantLock consumer_lock = new ReentrantLock();
+	private volatile long cursor = 0;
+	private long drained_from = 0;
+	private volatile int epoch = 0;
+	private int drained_epoch = 0;
+	private volatile Thread waiter = null;
+
+	/**
+	 * @param size the minimum number of slots, which is rounded up to a power
+	 * of two
+	 * @param history_millis the minimum time a drained entry is retained
+	 */
+	public BatchRedoQueue(int size, int history_millis) {
+		this(size, size, history_millis);
+	}
+
+	/**
+	 * @param size the initial number of slots, which is rounded up to a power
+	 * of two
+	 * @param max_size the number of slots up to which the ring grows rather
+	 * than block producers
+	 * @param history_millis the maximum time a drained entry is retained
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BatchRedoQueue(int size, int max_size, int history_millis) {
+		int capacity = ceilPowerOfTwo(size);
+		slots = new Slot[capacity];
+		for (int k = 0; k < capacity; k ++) {
+			slots[k] = new Slot<T>(k - capacity);
+		}
+		max_capacity = Math.max(capacity, ceilPowerOfTwo(max_size));
+		is_fixed = max_capacity == capacity;
+		max_retain_millis = retain_millis = history_millis;
+	}
+
+	private static int ceilPowerOfTwo(int size) {
+		return Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+	}
+
+	private Slot<T> slotOf(long seq) {
+		Slot<T>[] ring = slots;
+		return ring[(int) seq & (ring.length - 1)];
+	}
+
+	private static void backOff(int n_try) {
+		if (n_try < SPINS) {
+			return;
+		}
+		if (n_try < 2 * SPINS) {
+			Thread.yield();
+		}
+		else {
+			LockSupport.parkNanos(50000);
+		}
+	}
+
+	/**
+	 * Doubles the ring unless another producer did so already. Each slot
+	 * keeps its entry, and each new slot is free for the next sequence number
+	 * that maps to it.
+	 * @return false if the ring is at its maximum size
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private boolean grow(int length) {
+		if (length >= max_capacity) {
+			return false;
+		}
+		consumer_lock.lock();
+		try {
+			long stamp = grow_lock.writeLock();
+			try {
+				Slot<T>[] ring = slots;
+				if (ring.length != length) {
+					return true;
+				}
+				Slot<T>[] grown = new Slot[2 * length];
+				int mask = grown.length - 1;
+				for (Slot<T> slot : ring) {
+					grown[(int) slot.seq & mask] = slot;
+					grown[(int) (slot.seq + length) & mask] = new Slot<T>(slot
+							.seq - length);
+				}
+				slots = grown;
+				return true;
+			}
+			finally {
+				grow_lock.unlockWrite(stamp);
+			}
+		}
+		finally {
+			consumer_lock.unlock();
+		}
+	}
+
+	/**
+	 * Appends an entry. If the ring is full of entries that are pending or
+	 * still retained, it grows up to its maximum size, and then blocks until
+	 * the oldest entry was drained and released.
+	 * @param item the entry
+	 * @param id the identifier to rewind to this entry by
+	 */
+	public void enqueue(T item, int id) {
+		enqueue(claim(), item, id);
+	}
+
+	/**
+	 * Reserves the position of the next entry, so that entries are ordered
+	 * by when they were claimed rather than by when they were enqueued. Each
+	 * claimed position must be passed to {@code enqueue}, as the consumer
+	 * cannot drain past it before.
+	 * @return the sequence number to enqueue the entry with
+	 */
+	public long claim() {
+		return claim.getAndIncrement();
+	}
+
+	/**
+	 * Appends an entry at a claimed position. Blocks like {@code enqueue}
+	 * without a position.
+	 * @param seq the sequence number returned by {@code claim}
+	 * @param item the entry
+	 * @param id the identifier to rewind to this entry by
+	 */
+	public void enqueue(final long seq, T item, int id) {
+		for (int n_try = 0;; n_try ++) {
+			long wait = -1;
+			int length;
+			boolean is_full = false;
+			long stamp = is_fixed ? 0 : grow_lock.readLock();
+			try {
+				Slot<T>[] ring = slots;
+				length = ring.length;
+				Slot<T> slot = ring[(int) seq & (length - 1)];
+				long run = slot.run, prev = seq - length;
+				if (slot.seq == prev) {
+					if (run > PENDING) {
+						wait = (prev < released) ? -1 : run + retain_millis -
+								System.currentTimeMillis();
+						if ((wait < 0) && slot_run.compareAndSet(slot, run,
+								RECLAIMING)) {
+							slot.item = item;
+							slot.id = id;
+							slot.seq = seq;
+							slot.run = PENDING;
+							break;
+						}
+					}
+					is_full = (run == PENDING) || (wait >= 0);
+				}
+			}
+			finally {
+				if (! is_fixed) {
+					grow_lock.unlockRead(stamp);
+				}
+			}
+			if (is_full && grow(length)) {
+				n_try = 0;
+			}
+			else if (wait >= 0) {
+				LockSupport.parkNanos(Math.min(wait + 1, MAX_PARK_MILLIS) *
+						1000000);
+			}
+			else {
+				backOff(n_try);
+			}
+		}
+		Thread consumer = waiter;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	private boolean isPublished(Slot<T> slot, long seq) {
+		return (slot.run == PENDING) && (slot.seq == seq);
+	}
+
+	/**
+	 * @return true if at least one entry can be drained
+	 */
+	public boolean hasPending() {
+		long seq = cursor;
+		return isPublished(slotOf(seq), seq);
+	}
+
+	/**
+	 * Moves up to {@code max} pending entries, in order, to a batch. Must only
+	 * be called by the consumer.
+	 * @param batch the collection to add the entries to
+	 * @param max the maximum number of entries to drain
+	 * @return the number of entries drained, which is zero if none is pending
+	 */
+	public int drainTo(Collection<? super T> batch, int max) {
+		consumer_lock.lock();
+		try {
+			drained_epoch = epoch;
+			final long now = Math.max(System.currentTimeMillis(), 1);
+			long seq = drained_from = cursor;
+			int n = 0;
+			for (; n < max; n ++, seq ++) {
+				Slot<T> slot = slotOf(seq);
+				if (! isPublished(slot, seq)) {
+					break;
+				}
+				batch.add(slot.item);
+				slot.run = now;
+			}
+			cursor = seq;
+			return n;
+		}
+		finally {
+			consumer_lock.unlock();
+		}
+	}
+
+	/**
+	 * Restamps the entries of the last batch with the current time. The
+	 * consumer calls this once it has written them, so that they are retained,
+	 * and rewinds are timed, from the write rather than from the drain. Does
+	 * nothing if the queue was rewound since the batch was drained.
+	 */
+	public void markWritten() {
+		consumer_lock.lock();
+		try {
+			if (isStale()) {
+				return;
+			}
+			final long now = Math.max(System.currentTimeMillis(), 1);
+			for (long seq = drained_from; seq < cursor; seq ++) {
+				Slot<T> slot = slotOf(seq);
+				long run = slot.run;
+				if ((run > PENDING) && (slot.seq == seq)) {
+					slot_run.compareAndSet(slot, run, now);
+				}
+			}
+		}
+		finally {
+			consumer_lock.unlock();
+		}
+	}
+
+	/**
+	 * Parks the consumer until an entry is pending, the queue was rewound, or
+	 * the consumer is interrupted.
+	 */
+	public void awaitPending() {
+		awaitPending(0);
+	}
+
+	/**
+	 * Parks the consumer like {@code awaitPending}, but no longer than the
+	 * given time.
+	 * @param timeout_millis the maximum time to wait, or zero to wait
+	 * indefinitely
+	 * @return false if the time passed without an entry pending or a rewind
+	 */
+	public boolean awaitPending(long timeout_millis) {
+		final long deadline = System.nanoTime() + timeout_millis * 1000000;
+		waiter = Thread.currentThread();
+		try {
+			while ((! hasPending()) && (! isStale()) && (! Thread.currentThread()
+					.isInterrupted())) {
+				if (timeout_millis == 0) {
+					LockSupport.park(this);
+					continue;
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				LockSupport.parkNanos(this, remaining);
+			}
+			return true;
+		}
+		finally {
+			waiter = null;
+		}
+	}
+
+	/**
+	 * @return true if the queue was rewound since the consumer last drained
+	 * entries, so that the rest of the last batch must be discarded
+	 */
+	public boolean isStale() {
+		return epoch != drained_epoch;
+	}
+
+	/**
+	 * Searches the drained entries that are still retained for the one with
+	 * the given identifier. Must be called while holding the consumer lock.
+	 * @return the sequence number of the entry, or -1 if not found
+	 */
+	private long find(int id) {
+		final long end = cursor, start = end - slots.length;
+		for (long seq = end - 1; seq >= start; seq --) {
+			Slot<T> slot = slotOf(seq);
+			if ((slot.run <= PENDING) || (slot.seq != seq)) {
+				break;
+			}
+			if (slot.id == id) {
+				return seq;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Adapts the retention time to twice the recent peak latency of
+	 * rewinds, measured from when the named entry was drained.
+	 */
+	private void observeLatency(long sample) {
+		if ((latency < 0) || (sample > latency)) {
+			latency = sample;
+		}
+		else {
+			latency -= (latency - sample) / 8;
+		}
+		retain_millis = Math.min(max_retain_millis, Math.max(
+				MIN_RETAIN_MILLIS, 2 * latency));
+	}
+
+	/**
+	 * Marks all drained entries after the one with the given identifier as
+	 * pending again, so that they are drained once more. Slots reclaimed by
+	 * producers cannot be replayed, in which case nothing is rewound. Entries
+	 * up to the given one are released.
+	 * @param id the identifier of the last entry not to replay
+	 * @throws EntryNotFoundException if the entry is no longer retained
+	 */
+	public void rewind(int id) throws EntryNotFoundException {
+		rewind(id, 1);
+	}
+
+	/**
+	 * Marks the drained entry with the given identifier, and all drained
+	 * after it, as pending again, for example because they could not be
+	 * written. Entries before the given one are released. Unlike
+	 * {@code rewind}, this does not adapt the retention time.
+	 * @param id the identifier of the first entry to replay
+	 * @throws EntryNotFoundException if the entry is no longer retained
+	 */
+	public void rewindBefore(int id) throws EntryNotFoundException {
+		rewind(id, 0);
+	}
+
+	private void rewind(int id, int skip) throws EntryNotFoundException {
+		consumer_lock.lock();
+		try {
+			final long end = cursor, target = find(id), from = target + skip;
+			if (target == -1) {
+				throw new EntryNotFoundException(id);
+			}
+			long[] run = new long[(int) (end - from)];
+			for (int k = 0; k < run.length; k ++) {
+				Slot<T> slot = slotOf(from + k);
+				run[k] = slot.run;
+				if ((run[k] <= PENDING) || (slot.seq != from + k) ||
+						(! slot_run.compareAndSet(slot, run[k], PENDING))) {
+					while (-- k >= 0) {
+						slotOf(from + k).run = run[k];
+					}
+					throw new EntryNotFoundException(id);
+				}
+			}
+			if (skip > 0) {
+				observeLatency(Math.max(System.currentTimeMillis() - slotOf(
+						target).run, 0));
+			}
+			released = Math.max(released, from);
+			cursor = from;
+			epoch ++;
+		}
+		finally {
+			consumer_lock.unlock();
+		}
+		Thread consumer = waiter;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * @param id the identifier of an entry
+	 * @return the drained entry with the given identifier, or null if it is
+	 * no longer retained
+	 */
+	public T get(int id) {
+		consumer_lock.lock();
+		try {
+			long seq = find(id);
+			return (seq == -1) ? null : slotOf(seq).item;
+		}
+		finally {
+			consumer_lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases the entry with the given identifier and all drained before
+	 * it, as they will not be replayed. Their slots can be reclaimed without
+	 * waiting for the retention time.
+	 * @param id the identifier of the last entry to release
+	 */
+	public void release(int id) {
+		consumer_lock.lock();
+		try {
+			long seq = find(id);
+			if (seq >= 0) {
+				released = Math.max(released, seq + 1);
+			}
+		}
+		finally {
+			consumer_lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the time for which drained entries are currently retained
+	 */
+	public long getRetentionMillis() {
+		return retain_millis;
+	}
+
+	long getCursor() { return cursor; }
+
+	long getClaimed() { return claim.get(); }
+
+	long getReleased() { return released; }
+}
@@ -1,48 +1,112 @@
 package com.sbandara.cloudpokes;
 
-import javax.xml.bind.DatatypeConverter;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.sbandara.cloudpokes.util.TokenSet;
+
+/**
+ * The address of a device, which is either a 32-byte APNS token or a GCM
+ * registration id. APNS tokens are stored as four longs, which makes them
+ * cheap to compare and to hash, and their Base64 form is computed once when
+ * first needed. Tokens are immutable, and can be deduplicated with an
+ * {@code Interner}.
+ */
 public class DeviceToken {
 	
-	private final byte[] apns_token;
+	private final static int APNS_TOKEN_LEN = 32;
+	
+	private final long[] apns_token;
 	private final String gcm_token;
-
+	private volatile String base64 = null;
+	
+	/**
+	 * Deduplicates device tokens, so that a table of many tokens, some of
+	 * them repeated, holds only one instance of each.
+	 */
+	public static final class Interner {
+		
+		private final ConcurrentHashMap<DeviceToken, DeviceToken> tokens =
+				new ConcurrentHashMap<DeviceToken, DeviceToken>();
+		
+		/**
+		 * @param token a device token
+		 * @return the first instance equal to the token that was interned
+		 */
+		public DeviceToken intern(DeviceToken token) {
+			DeviceToken known = tokens.putIfAbsent(token, token);
+			return (known == null) ? token : known;
+		}
+		
+		public DeviceToken apnsToken(byte[] apns_token) {
+			return intern(DeviceToken.apnsToken(apns_token));
+		}
+		
+		public DeviceToken apnsTokenFromBase64(String apns_token) {
+			return intern(DeviceToken.apnsTokenFromBase64(apns_token));
+		}
+		
+		public DeviceToken gcmToken(String gcm_token) {
+			return intern(DeviceToken.gcmToken(gcm_token));
+		}
+		
+		/**
+		 * @return the number of distinct tokens interned
+		 */
+		public int size() { return tokens.size(); }
+		
+		public void clear() { tokens.clear(); }
+	}
+	
 	public static DeviceToken apnsToken(byte[] apns_token) {
 		return new DeviceToken(apns_token);
 	}
 	
 	public static DeviceToken apnsTokenFromBase64(String apns_token) {
-		byte[] token = DatatypeConverter.parseBase64Binary(apns_token);
-		if (token.length != 32) {
-			throw new IllegalArgumentException("Not an APNS token.");
-		}
-		return new DeviceToken(token);
+		return new DeviceToken(Base64.getMimeDecoder().decode(apns_token));
 	}
-
+	
 	DeviceToken(byte[] apns_token) {
-		this.apns_token = apns_token;
+		this.apns_token = toWords(apns_token);
 		gcm_token = null;
 	}
-
+	
+	DeviceToken(long w0, long w1, long w2, long w3) {
+		apns_token = new long[] { w0, w1, w2, w3 };
+		gcm_token = null;
+	}
+	
 	public final static DeviceToken gcmToken(String gcm_token) {
 		return new DeviceToken(gcm_token);
 	}
-
+	
 	DeviceToken(String gcm_token) {
 		apns_token = null;
 		this.gcm_token = gcm_token;
 	}
 	
+	private static long[] toWords(byte[] token) {
+		if ((token == null) || (token.length != APNS_TOKEN_LEN)) {
+			throw new IllegalArgumentException("Not an APNS token.");
+		}
+		ByteBuffer buf = ByteBuffer.wrap(token);
+		return new long[] { buf.getLong(), buf.getLong(), buf.getLong(),
+				buf.getLong() };
+	}
+	
 	public final boolean isGcmToken() { return gcm_token != null; }
 	
 	public final boolean isApnsToken() { return apns_token != null; }
 	
 	public final boolean equalsApnsToken(byte[] token) {
-		if ((this.apns_token == null) || (token == null)) {
+		if ((this.apns_token == null) || (token == null) || (token.length !=
+				APNS_TOKEN_LEN)) {
 			return false;
 		}
-		for (int k = 0; k < this.apns_token.length; k ++) {
-			if (this.apns_token[k] != token[k]) {
+		ByteBuffer buf = ByteBuffer.wrap(token);
+		for (int k = 0; k < apns_token.length; k ++) {
+			if (apns_token[k] != buf.getLong()) {
 				return false;
 			}
 		}
@@ -50,10 +114,18 @@ public class DeviceToken {
 	}
 	
 	public final boolean equalsApnsToken(String base64) {
-		if (base64 == null) {
+		if ((base64 == null) || (apns_token == null)) {
+			return false;
+		}
+		if (base64.equals(getBase64ApnsToken())) {
+			return true;
+		}
+		try {
+			return equalsApnsToken(Base64.getMimeDecoder().decode(base64));
+		}
+		catch (IllegalArgumentException e) {
 			return false;
 		}
-		return equalsApnsToken(DatatypeConverter.parseBase64Binary(base64));
 	}
 	
 	public final boolean equalsGcmToken(String token) {
@@ -75,7 +147,24 @@ public class DeviceToken {
 		if (other.gcm_token != null) {
 			return other.gcm_token.equals(this.gcm_token);
 		}
-		else return equalsApnsToken(other.apns_token);
+		if (this.apns_token == null) {
+			return false;
+		}
+		for (int k = 0; k < apns_token.length; k ++) {
+			if (apns_token[k] != other.apns_token[k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	@Override
+	public final int hashCode() {
+		if (gcm_token != null) {
+			return gcm_token.hashCode();
+		}
+		return (int) TokenSet.hash(apns_token[0], apns_token[1], apns_token[2],
+				apns_token[3]);
 	}
 	
 	@Override
@@ -84,7 +173,7 @@ public class DeviceToken {
 			return "GCM:" + gcm_token;
 		}
 		else {
-			return "APNS:" + DatatypeConverter.printBase64Binary(apns_token);
+			return "APNS:" + getBase64ApnsToken();
 		}
 	}
 	
@@ -94,18 +183,39 @@ public class DeviceToken {
 		}
 		return gcm_token;
 	}
-
+	
+	/**
+	 * @return a new copy of the 32 bytes of the APNS token, which the caller
+	 * may modify
+	 */
 	public final byte[] getApnsToken() {
 		if (apns_token == null) {
 			throw new UnsupportedOperationException("Not an APNS token.");
 		}
-		return apns_token;
+		ByteBuffer buf = ByteBuffer.allocate(APNS_TOKEN_LEN);
+		for (long word : apns_token) {
+			buf.putLong(word);
+		}
+		return buf.array();
 	}
 	
-	public final String getBase64ApnsToken() {
+	/**
+	 * @return the APNS token as four big endian longs, which must not be
+	 * modified
+	 */
+	final long[] getApnsWords() {
 		if (apns_token == null) {
 			throw new UnsupportedOperationException("Not an APNS token.");
 		}
-		return DatatypeConverter.printBase64Binary(apns_token);
+		return apns_token;
+	}
+	
+	public final String getBase64ApnsToken() {
+		String encoded = base64;
+		if (encoded == null) {
+			encoded = Base64.getEncoder().encodeToString(getApnsToken());
+			base64 = encoded;
+		}
+		return encoded;
 	}
 }
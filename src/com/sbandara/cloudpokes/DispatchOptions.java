@@ -0,0 +1,210 @@
+package com.sbandara.cloudpokes;
+
+import java.io.File;
+
+/**
+ * Tuning parameters for pipelined dispatch through {@code ApnsPushSender}.
+ * Notifications sent in pipelined mode are recorded on a redo tape so that
+ * frames streamed after a rejected notification can be resent once APNS
+ * hangs up. Setters return this instance for fluent configuration.
+ */
+public final class DispatchOptions {
+	
+	private int history_size = 8192, history_millis = 2000, n_conn = 1,
+			max_history_size = 65536;
+	private int batch_size = 32768, max_delay_millis = 10;
+	private int low_batch_size = 0, low_delay_millis = 0;
+	private boolean is_non_blocking = false;
+	private File journal_dir = null;
+	private int segment_size = 0, max_segments = 0;
+	private double rate = 0, global_rate = 0;
+	private int burst = 0, global_burst = 0;
+	
+	/**
+	 * Sets the initial capacity of the redo tape and the maximum time that
+	 * sent notifications are retained for resending. The retention time
+	 * shrinks to twice the observed delay of error responses, and
+	 * notifications are released as soon as APNS confirmed them.
+	 * @param size the initial number of notifications on the tape
+	 * @param millis the time in milliseconds a sent notification is retained,
+	 * or zero to release notifications as soon as they were written
+	 * @return this options object for fluent configuration
+	 */
+	public DispatchOptions setHistory(int size, int millis) {
+		if ((size < 2) || (millis < 0)) {
+			throw new IllegalArgumentException("Bad redo history settings.");
+		}
+		history_size = size;
+		history_millis = millis;
+		return this;
+	}
+	
+	/**
+	 * Sets the size up to which the redo tape grows under load instead of
+	 * blocking senders. Once the tape is at this size, senders wait until the
+	 * oldest notification is no longer retained.
+	 * @param max_size the maximum number of notifications on the tape
+	 * @return this options object for fluent configuration
+	 */
+	public DispatchOptions setMaxHistorySize(int max_size) {
+		if (max_size < 2) {
+			throw new IllegalArgumentException("Bad redo history settings.");
+		}
+		max_history_size = max_size;
+		return this;
+	}
+	
+	/**
+	 * Sets the number of parallel connections to the APNS gateway. Each
+	 * connection keeps its own redo tape and error receiver.
+	 * @param n_conn the number of dispatch connections
+	 * @return this options object for fluent configuration
+	 */
+	public DispatchOptions setConnections(int n_conn) {
+		if (n_conn < 1) {
+			throw new IllegalArgumentException("Need at least one connection.");
+		}
+		this.n_conn = n_conn;
+		return this;
+	}
+	
+	/**
+	 * Sets how frames are coalesced before they are written to the socket.
+	 * Buffered frames are written once the buffer is full, once all queued
+	 * notifications were written, or at the latest after the given delay.
+	 * @param size the size of the write buffer in bytes
+	 * @param max_delay_millis the maximum time a frame is held back
+	 * @return this options object for fluent configuration
+	 */
+	public DispatchOptions setBatching(int size, int max_delay_millis) {
+		if ((size < 1) || (max_delay_millis < 0)) {
+			throw new IllegalArgumentException("Bad batching settings.");
+		}
+		batch_size = size;
+		this.max_delay_millis = max_delay_millis;
+		return this;
+	}
+	
+	int getBatchSize() { return batch_size; }
+	
+	int getMaxDelayMillis() { return max_delay_millis; }
+	
+	/**
+	 * Sends power saving notifications on connections of their own, so that
+	 * they never hold up notifications of immediate priority. Low priority
+	 * notifications are held back until a full batch is pending, or until
+	 * the oldest waited the given delay, and while immediate notifications
+	 * are pending on the same slot. They are then written in one burst.
+	 * @param size the size of the write buffer of a low priority connection
+	 * @param max_delay_millis the maximum time a low priority notification is
+	 * held back
+	 * @return this options object for fluent configuration
+	 */
+	public DispatchOptions setLowPriorityLane(int size, int max_delay_millis) {
+		if ((size < 1) || (max_delay_millis < 0)) {
+			throw new IllegalArgumentException("Bad batching settings.");
+		}
+		low_batch_size = size;
+		low_delay_millis = max_delay_millis;
+		return this;
+	}
+	
+	boolean hasLowPriorityLane() { return low_batch_size > 0; }
+	
+	int getLowPriorityBatchSize() { return low_batch_size; }
+	
+	int getLowPriorityDelayMillis() { return low_delay_millis; }
+	
+	/**
+	 * Selects the non-blocking transport, in which a single selector thread
+	 * drives all dispatch connections instead of one thread per connection.
+	 * @param is_non_blocking true to use the non-blocking transport
+	 * @return this options object for fluent configuration
+	 */
+	public DispatchOptions setNonBlocking(boolean is_non_blocking) {
+		this.is_non_blocking = is_non_blocking;
+		return this;
+	}
+	
+	boolean isNonBlocking() { return is_non_blocking; }
+	
+	/**
+	 * Records every notification, encoded as a frame, in a journal of
+	 * memory-mapped files. Frames that were not yet written to APNS are sent
+	 * when the sender is configured again after a restart, and notifications
+	 * that have dropped off the redo tape are resent from the journal. If the
+	 * sender was configured with more connections, or a low priority lane,
+	 * before, the unsent frames of their journals are moved to those of the
+	 * connections their devices are routed to now.
+	 * @param dir the directory to keep the journal in, with a subdirectory per
+	 * dispatch connection
+	 * @param segment_size the size of each journal file in bytes
+	 * @param max_segments the number of journal files to keep
+	 * @return this options object for fluent configuration
+	 */
+	public DispatchOptions setJournal(File dir, int segment_size,
+			int max_segments) {
+		if ((segment_size < 4096) || (max_segments < 1)) {
+			throw new IllegalArgumentException("Bad journal settings.");
+		}
+		journal_dir = dir;
+		this.segment_size = segment_size;
+		this.max_segments = max_segments;
+		return this;
+	}
+	
+	/**
+	 * Paces the notifications written on each connection. The rate is halved
+	 * whenever APNS hangs up or shuts a connection down, and recovers
+	 * gradually afterwards.
+	 * @param per_second the number of notifications per second and connection
+	 * @param burst the number of notifications that may be written at once
+	 * @return this options object for fluent configuration
+	 */
+	public DispatchOptions setRateLimit(double per_second, int burst) {
+		if ((per_second <= 0) || (burst < 1)) {
+			throw new IllegalArgumentException("Bad rate limit settings.");
+		}
+		rate = per_second;
+		this.burst = burst;
+		return this;
+	}
+	
+	/**
+	 * Paces the notifications written on all connections together, in
+	 * addition to any limit per connection.
+	 * @param per_second the number of notifications per second
+	 * @param burst the number of notifications that may be written at once
+	 * @return this options object for fluent configuration
+	 */
+	public DispatchOptions setGlobalRateLimit(double per_second, int burst) {
+		if ((per_second <= 0) || (burst < 1)) {
+			throw new IllegalArgumentException("Bad rate limit settings.");
+		}
+		global_rate = per_second;
+		global_burst = burst;
+		return this;
+	}
+	
+	double getRate() { return rate; }
+	
+	int getBurst() { return burst; }
+	
+	double getGlobalRate() { return global_rate; }
+	
+	int getGlobalBurst() { return global_burst; }
+	
+	File getJournalDir() { return journal_dir; }
+	
+	int getSegmentSize() { return segment_size; }
+	
+	int getMaxSegments() { return max_segments; }
+	
+	int getConnections() { return n_conn; }
+	
+	int getHistorySize() { return history_size; }
+	
+	int getHistoryMillis() { return history_millis; }
+	
+	int getMaxHistorySize() { return Math.max(history_size, max_history_size); }
+}
@@ -3,21 +3,110 @@ package com.sbandara.cloudpokes;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 public class FeedbackClient extends ApnsGateway {
 	
-	private static final int TOKEN_LEN = 32;
+	private static final int TOKEN_LEN = 32, RECORD_LEN = 6 + TOKEN_LEN,
+			BATCH_SIZE = 1024;
 	
 	public interface Listener {
 		public void receiveInactiveToken(byte[] token);
 	}
 	
+	/**
+	 * Receives inactive tokens in batches, as they are decoded from the
+	 * response of the feedback service.
+	 */
+	public interface BatchListener {
+		/**
+		 * @param batch the decoded tokens, which are only valid for the
+		 * duration of the call
+		 */
+		public void receiveInactiveTokens(Batch batch);
+	}
+	
+	/**
+	 * A batch of feedback records, which are read in place from the receive
+	 * buffer. Each record holds a device token and the time at which APNS
+	 * found the app to be removed from the device.
+	 */
+	public static final class Batch {
+		
+		private final ByteBuffer buf;
+		private int size = 0;
+		
+		private Batch(ByteBuffer buf) {
+			this.buf = buf;
+		}
+		
+		/**
+		 * @return the number of records in this batch
+		 */
+		public int size() { return size; }
+		
+		private int offsetOf(int k) {
+			if ((k < 0) || (k >= size)) {
+				throw new IndexOutOfBoundsException();
+			}
+			return k * RECORD_LEN;
+		}
+		
+		/**
+		 * @param k the index of the record
+		 * @return the time at which the token became inactive, in milliseconds
+		 * since the epoch
+		 */
+		public long getTime(int k) {
+			return (buf.getInt(offsetOf(k)) & 0xffffffffL) * 1000;
+		}
+		
+		/**
+		 * Copies a token to an array without allocating.
+		 * @param k the index of the record
+		 * @param dst the array to copy the 32 bytes of the token to
+		 * @param off the offset into the array
+		 */
+		public void getToken(int k, byte[] dst, int off) {
+			System.arraycopy(buf.array(), offsetOf(k) + 6, dst, off,
+					TOKEN_LEN);
+		}
+		
+		/**
+		 * @param k the index of the record
+		 * @return a copy of the token
+		 */
+		public byte[] getToken(int k) {
+			byte[] token = new byte[TOKEN_LEN];
+			getToken(k, token, 0);
+			return token;
+		}
+	}
+	
 	public FeedbackClient(ApnsConfig config) {
 		super(config, Service.FEEDBACK);
 	}
 	
+	public void fetchInactiveTokens(final Listener listener)
+			throws IOException {
+		fetchInactiveTokenBatches(new BatchListener() {
+			public void receiveInactiveTokens(Batch batch) {
+				for (int k = 0; k < batch.size(); k ++) {
+					listener.receiveInactiveToken(batch.getToken(k));
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Fetches inactive tokens from the feedback service and passes them to a
+	 * listener in batches of up to 1024.
+	 * @param listener the listener to receive batches of tokens
+	 * @throws IOException if the response could not be read or was malformed
+	 */
 	@SuppressWarnings("resource")
-	public void fetchInactiveTokens(Listener listener) throws IOException {
+	public void fetchInactiveTokenBatches(BatchListener listener)
+			throws IOException {
 		InputStream in = null;
 		Socket feedback_socket = null;
 		try {
@@ -27,23 +116,7 @@ public class FeedbackClient extends ApnsGateway {
 				return;
 			}
 			in = feedback_socket.getInputStream();
-			byte[] header = new byte[6];
-			int n = 0;
-			for (;;) {
-				n = in.read(header);
-				if (n < 0) {
-					break;
-				}
-				else if ((n != header.length) || (header[5] != TOKEN_LEN)) {
-					throw new IOException("Bad response from APNS.");
-				}
-				byte[] token = new byte[TOKEN_LEN];
-				n = in.read(token);
-				if (n != token.length) {
-					throw new IOException("Bad response from APNS.");
-				}
-				listener.receiveInactiveToken(token);
-			}
+			readFeedback(in, listener);
 		}
 		finally {
 			if (in == null) {
@@ -54,4 +127,42 @@ public class FeedbackClient extends ApnsGateway {
 			}
 		}
 	}
+	
+	/**
+	 * Reads feedback records into a buffer until it is full or the stream
+	 * ends, and passes all complete records to the listener. A record that
+	 * was read only partly is carried over to the next batch.
+	 */
+	static void readFeedback(InputStream in, BatchListener listener)
+			throws IOException {
+		final byte[] chunk = new byte[BATCH_SIZE * RECORD_LEN];
+		final Batch batch = new Batch(ByteBuffer.wrap(chunk));
+		int end = 0, n;
+		do {
+			n = in.read(chunk, end, chunk.length - end);
+			if (n > 0) {
+				end += n;
+				if (end < chunk.length) {
+					continue;
+				}
+			}
+			final int count = end / RECORD_LEN, len = count * RECORD_LEN;
+			if ((n < 0) && (end != len)) {
+				throw new IOException("Bad response from APNS.");
+			}
+			for (int off = 4; off < len; off += RECORD_LEN) {
+				if (batch.buf.getShort(off) != TOKEN_LEN) {
+					throw new IOException("Bad response from APNS.");
+				}
+			}
+			if (count > 0) {
+				batch.size = count;
+				listener.receiveInactiveTokens(batch);
+				batch.size = 0;
+				end -= len;
+				System.arraycopy(chunk, len, chunk, 0, end);
+			}
+		}
+		while (n >= 0);
+	}
 }
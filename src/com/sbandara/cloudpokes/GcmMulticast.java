@@ -0,0 +1,72 @@
+package com.sbandara.cloudpokes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.eclipsesource.json.JsonValue;
+
+/**
+ * A GCM request that delivers the same data object to up to
+ * {@code MAX_RECIPIENTS} devices. The results returned by GCM are in the
+ * order of the registration IDs, and thus of the notifications added.
+ */
+final class GcmMulticast {
+
+	final static int MAX_RECIPIENTS = 1000;
+
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+	private final static byte[] DATA_HEAD = "{\"data\":".getBytes(UTF_8),
+			IDS_HEAD = ",\"registration_ids\":[".getBytes(UTF_8);
+
+	private final byte[] data;
+	private final ArrayList<Notification> recipients =
+			new ArrayList<Notification>();
+
+	GcmMulticast(byte[] data) {
+		this.data = data;
+	}
+
+	/**
+	 * @param notification the notification to add, whose data object must be
+	 * the one this request was created with
+	 * @return true if the request has reached the maximum number of
+	 * recipients
+	 */
+	boolean add(Notification notification) {
+		recipients.add(notification);
+		return recipients.size() >= MAX_RECIPIENTS;
+	}
+
+	List<Notification> getRecipients() { return recipients; }
+
+	void writeTo(OutputStream out) throws IOException {
+		out.write(DATA_HEAD);
+		out.write(data);
+		out.write(IDS_HEAD);
+		for (int k = 0; k < recipients.size(); k ++) {
+			if (k > 0) {
+				out.write(',');
+			}
+			out.write(Notification.jsonToByteArray(JsonValue.valueOf(
+					recipients.get(k).getToken().getGcmToken())));
+		}
+		out.write(']');
+		out.write('}');
+	}
+
+	byte[] toByteArray() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length +
+				recipients.size() * 200 + 64);
+		try {
+			writeTo(baos);
+		}
+		catch (IOException never) {
+			throw new RuntimeException();
+		}
+		return baos.toByteArray();
+	}
+}
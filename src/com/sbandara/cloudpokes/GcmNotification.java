@@ -3,13 +3,11 @@ package com.sbandara.cloudpokes;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import com.eclipsesource.json.JsonArray;
-import com.eclipsesource.json.JsonObject;
 
 final class GcmNotification extends Notification {
 	
-	GcmNotification(DeviceToken token) {
-		super(token);
+	GcmNotification(DeviceToken token, NotificationTemplate template) {
+		super(token, template);
 	}
 
 	@Override
@@ -20,20 +18,39 @@ final class GcmNotification extends Notification {
 
 	@Override
 	protected void sealPayload() {
-		json_payload.add("message", getMessage());
+		json_payload.set("message", getMessage());
 		String sound = getSound();
 		if (sound != null) {
-			json_payload.add("sound", sound);
+			json_payload.set("sound", sound);
 		}
+		else {
+			json_payload.remove("sound");
+		}
+		if (getBadge() >= 0) {
+			json_payload.set("badge", getBadge());
+		}
+	}
+
+	@Override
+	byte[] encode() {
+		return (template != null) ? template.getGcmData(this) :
+				jsonToByteArray(json_payload);
+	}
+
+	/**
+	 * @return the serialized data object of this notification, which is
+	 * encoded when the notification is sealed and must not be modified
+	 */
+	byte[] getData() {
+		byte[] data = getEncoded();
+		return (data == null) ? encode() : data;
 	}
 
 	@Override
 	void writeToOutputStream(OutputStream out) throws IOException {
-		JsonObject pack = new JsonObject().add("data", json_payload)
-				.add("registration_ids", new JsonArray().add(getToken()
-						.getGcmToken()));
-		byte[] payload = jsonToByteArray(pack);
-		out.write(payload);
+		GcmMulticast request = new GcmMulticast(getData());
+		request.add(this);
+		request.writeTo(out);
 	}
 
 	@Override
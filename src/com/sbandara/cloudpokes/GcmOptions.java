@@ -0,0 +1,48 @@
+package com.sbandara.cloudpokes;
+
+/**
+ * Tuning parameters for {@code GcmPushSender}. By default, each notification
+ * is posted in a request of its own on the thread that sends it. Setters
+ * return this instance for fluent configuration.
+ */
+public final class GcmOptions {
+
+	private int batch_delay_millis = 0, max_in_flight = 0;
+
+	/**
+	 * Groups notifications with identical data into multicast requests of up
+	 * to 1000 recipients. A request is sent as soon as it is full, or when
+	 * the first notification in it has waited for the given delay.
+	 * @param batch_delay_millis the maximum time a notification is held
+	 * back, or zero to send every notification right away
+	 * @return this options object for fluent configuration
+	 */
+	public GcmOptions setBatchDelay(int batch_delay_millis) {
+		if (batch_delay_millis < 0) {
+			throw new IllegalArgumentException("Delay must not be negative.");
+		}
+		this.batch_delay_millis = batch_delay_millis;
+		return this;
+	}
+
+	int getBatchDelayMillis() { return batch_delay_millis; }
+
+	/**
+	 * Posts requests from a pool of background threads, which reuse their
+	 * keep-alive connections to GCM. Senders block once the given number of
+	 * requests is in flight. Note that the JDK keeps at most
+	 * {@code http.maxConnections} idle connections per host, 5 by default.
+	 * @param max_in_flight the maximum number of concurrent requests, or zero
+	 * to post requests on the sending thread
+	 * @return this options object for fluent configuration
+	 */
+	public GcmOptions setAsync(int max_in_flight) {
+		if (max_in_flight < 0) {
+			throw new IllegalArgumentException("Bad number of requests.");
+		}
+		this.max_in_flight = max_in_flight;
+		return this;
+	}
+
+	int getMaxInFlight() { return max_in_flight; }
+}
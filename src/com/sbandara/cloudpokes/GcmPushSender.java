@@ -6,7 +6,20 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.eclipsesource.json.JsonArray;
 import com.eclipsesource.json.JsonObject;
 
 public final class GcmPushSender extends ServiceConnector {
@@ -15,11 +28,37 @@ public final class GcmPushSender extends ServiceConnector {
 	
 	private final URL endpoint;
 	private final Delegate delegate;
+	private final int batch_delay_millis;
+	private final ExecutorService executor;
+	private final Semaphore in_flight;
+	private final HashMap<ByteBuffer, GcmMulticast> batches =
+			new HashMap<ByteBuffer, GcmMulticast>();
 
 	private static GcmPushSender the_instance = null;
+	private static Timer batch_timer = null;
+	private static ExecutorService batch_sender = null;
 	
 	public static void configure(Delegate delegate) {
-		the_instance = new GcmPushSender(delegate);
+		replaceInstance(new GcmPushSender(delegate));
+	}
+	
+	/**
+	 * Configures the sender for multicast batching or concurrent requests.
+	 * Results are still reported per notification to the delegate, from a
+	 * background thread if requests are posted asynchronously.
+	 * @param delegate the delegate that provides the API key and receives
+	 * results
+	 * @param options the batching delay and the number of requests in flight
+	 */
+	public static void configure(Delegate delegate, GcmOptions options) {
+		replaceInstance(new GcmPushSender(delegate, url, options));
+	}
+	
+	private static synchronized void replaceInstance(GcmPushSender sender) {
+		if (the_instance != null) {
+			the_instance.shutdown();
+		}
+		the_instance = sender;
 	}
 	
 	public static GcmPushSender getInstance() {
@@ -30,7 +69,31 @@ public final class GcmPushSender extends ServiceConnector {
 	}
 
 	public GcmPushSender(Delegate delegate) {
+		this(delegate, url, new GcmOptions());
+	}
+	
+	GcmPushSender(Delegate delegate, String url, GcmOptions options) {
 		this.delegate = delegate;
+		batch_delay_millis = options.getBatchDelayMillis();
+		final int max_in_flight = options.getMaxInFlight();
+		if (max_in_flight == 0) {
+			executor = null;
+			in_flight = null;
+		}
+		else {
+			in_flight = new Semaphore(max_in_flight);
+			executor = Executors.newFixedThreadPool(max_in_flight,
+					new ThreadFactory() {
+				private final AtomicInteger n_thread = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "GcmSender-" + n_thread
+							.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
 		try {
 			endpoint = new URL(url);
 		}
@@ -39,6 +102,28 @@ public final class GcmPushSender extends ServiceConnector {
 		}
 	}
 	
+	private static synchronized Timer getBatchTimer() {
+		if (batch_timer == null) {
+			batch_timer = new Timer("GcmBatchTimer", true);
+		}
+		return batch_timer;
+	}
+	
+	private static synchronized ExecutorService getBatchSender() {
+		if (batch_sender == null) {
+			batch_sender = Executors.newSingleThreadExecutor(
+					new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "GcmBatchSender");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return batch_sender;
+	}
+	
 	public interface Delegate {
 		public String getApiKey();
 		public void didSend(Notification notification, String reg_id);
@@ -61,16 +146,181 @@ public final class GcmPushSender extends ServiceConnector {
 		return conn;
 	}
 	
-	void sendNotification(Notification notification) {
+	void sendNotification(GcmNotification notification) {
+		byte[] data = notification.getData();
+		if (batch_delay_millis == 0) {
+			GcmMulticast request = new GcmMulticast(data);
+			request.add(notification);
+			sendMulticast(request);
+			return;
+		}
+		final ByteBuffer key = ByteBuffer.wrap(data);
+		final GcmMulticast request;
+		synchronized (batches) {
+			GcmMulticast pending = batches.get(key);
+			if (pending == null) {
+				pending = new GcmMulticast(data);
+				batches.put(key, pending);
+				final GcmMulticast batch = pending;
+				getBatchTimer().schedule(new TimerTask() {
+					@Override
+					public void run() {
+						synchronized (batches) {
+							if (batches.get(key) != batch) {
+								return;
+							}
+							batches.remove(key);
+						}
+						sendLater(batch);
+					}
+				}, batch_delay_millis);
+			}
+			if (! pending.add(notification)) {
+				return;
+			}
+			batches.remove(key);
+			request = pending;
+		}
+		sendMulticast(request);
+	}
+	
+	/**
+	 * Sends a batch whose delay passed on the batch sender thread, as posting
+	 * may block, and a failure must neither hold up nor kill the timer that
+	 * all senders share.
+	 */
+	private void sendLater(final GcmMulticast batch) {
+		try {
+			getBatchSender().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						sendMulticast(batch);
+					}
+					catch (RejectedExecutionException e) {
+						didFailQuietly(batch);
+					}
+					catch (Throwable e) {
+						System.out.println("Unhandled Exception.");
+					}
+				}
+			});
+		}
+		catch (Throwable e) {
+			didFailQuietly(batch);
+		}
+	}
+	
+	private void didFailQuietly(GcmMulticast batch) {
+		System.out.println("Failed to send GCM batch.");
+		try {
+			didFailAll(batch.getRecipients(), 0);
+		}
+		catch (Throwable e) {
+			System.out.println("Unhandled Exception.");
+		}
+	}
+	
+	/**
+	 * Sends all notifications that are held back for batching.
+	 */
+	public void flush() {
+		ArrayList<GcmMulticast> pending;
+		synchronized (batches) {
+			pending = new ArrayList<GcmMulticast>(batches.values());
+			batches.clear();
+		}
+		for (GcmMulticast request : pending) {
+			sendMulticast(request);
+		}
+	}
+	
+	/**
+	 * Sends the notifications held back for batching and stops the request
+	 * threads once the requests in flight are done. Nothing can be sent
+	 * asynchronously afterwards.
+	 */
+	public void shutdown() {
+		flush();
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+	
+	private void didSend(Notification notification, String reg_id) {
+		delegate.didSend(notification, reg_id);
+		notification.didComplete(PushResult.gcmSent(notification, reg_id));
+	}
+	
+	private void didFail(Notification notification, String error) {
+		delegate.didFail(notification, error);
+		notification.didComplete(PushResult.gcmFailed(notification, error));
+	}
+	
+	private void didFailAll(List<Notification> recipients, int from) {
+		for (int k = from; k < recipients.size(); k ++) {
+			didFail(recipients.get(k), null);
+		}
+	}
+	
+	/**
+	 * Posts a request, either on the calling thread or, in asynchronous mode,
+	 * on a background thread once fewer than the maximum number of requests
+	 * are in flight.
+	 */
+	void sendMulticast(final GcmMulticast request) {
+		if (executor == null) {
+			post(request);
+			return;
+		}
+		in_flight.acquireUninterruptibly();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						post(request);
+					}
+					finally {
+						in_flight.release();
+					}
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			in_flight.release();
+			throw e;
+		}
+	}
+	
+	private static void drainQuietly(InputStream is) {
+		if (is == null) {
+			return;
+		}
+		try {
+			byte[] buf = new byte[512];
+			while (is.read(buf) != -1);
+		}
+		catch (IOException e) { }
+		finally {
+			closeQuietly(is);
+		}
+	}
+	
+	private void post(GcmMulticast request) {
+		List<Notification> recipients = request.getRecipients();
 		HttpURLConnection conn = getConnection();
+		byte[] body = request.toByteArray();
+		conn.setFixedLengthStreamingMode(body.length);
 		OutputStream os = null;
 		try {
 			os = conn.getOutputStream();
-			notification.writeToOutputStream(os);
+			os.write(body);
 		}
 		catch (IOException e) {
 			System.out.println("Failed to send GCM request.");
 			conn.disconnect();
+			didFailAll(recipients, 0);
 			return;
 		}
 		finally {
@@ -81,17 +331,18 @@ public final class GcmPushSender extends ServiceConnector {
 		JsonObject response = null;
 		try {
 			is = conn.getInputStream();
-		    reader = new InputStreamReader(is);
+		    reader = new InputStreamReader(is, "UTF-8");
 		    response = JsonObject.readFrom(reader);
 		}
 		catch (IOException e) {
 			System.out.println("Failed to read response from GCM server.");
-			delegate.didFail(notification, null);
+			drainQuietly(conn.getErrorStream());
+			didFailAll(recipients, 0);
 			return;
 		}
 		catch (RuntimeException e) {
 			System.out.println("Failed to parse response from GCM server.");
-			delegate.didFail(notification, null);
+			didFailAll(recipients, 0);
 			return;
 		}
 		finally {
@@ -102,20 +353,35 @@ public final class GcmPushSender extends ServiceConnector {
 				closeQuietly(reader);
 			}
 		}
+		JsonArray results;
 		try {
-			JsonObject device = response.get("results").asArray().get(0)
-					.asObject();
-			String error = device.getString("error", null);
+			results = response.get("results").asArray();
+		}
+		catch (RuntimeException e) {
+			System.out.println("Failed to parse response from GCM server.");
+			didFailAll(recipients, 0);
+			return;
+		}
+		for (int k = 0; k < recipients.size(); k ++) {
+			String error, reg_id = null;
+			try {
+				JsonObject device = results.get(k).asObject();
+				error = device.getString("error", null);
+				if (error == null) {
+					reg_id = device.getString("registration_id", null);
+				}
+			}
+			catch (RuntimeException e) {
+				System.out.println("Failed to parse response from GCM server.");
+				didFailAll(recipients, k);
+				return;
+			}
 			if (error == null) {
-				String reg_id = device.getString("registration_id", null);
-				delegate.didSend(notification, reg_id);
+				didSend(recipients.get(k), reg_id);
 			}
 			else {
-				delegate.didFail(notification, error);
+				didFail(recipients.get(k), error);
 			}
 		}
-		catch (RuntimeException e) {
-			delegate.didFail(notification, null);
-		}
 	}
 }
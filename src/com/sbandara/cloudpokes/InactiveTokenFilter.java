@@ -0,0 +1,97 @@
+package com.sbandara.cloudpokes;
+
+import com.sbandara.cloudpokes.util.BloomFilter;
+import com.sbandara.cloudpokes.util.TokenFingerprintSet;
+import com.sbandara.cloudpokes.util.TokenSet;
+
+/**
+ * Remembers APNS device tokens that are known to be inactive, so that
+ * notifications to them are dropped before they are encoded. Tokens are kept
+ * as 64-bit fingerprints, which take about 11 bytes per token when the filter
+ * is sized for them, or about 53 MB for five million tokens. An active token
+ * is mistaken for an inactive one with a probability of about one in 2^64 per
+ * inactive token. An optional Bloom filter in front answers most lookups for
+ * active tokens without touching the fingerprints, at about 1.2 more bytes
+ * per token for a one percent rate.
+ * <p>
+ * The filter receives batches from {@code FeedbackClient} directly. Once set
+ * on {@code ApnsPushSender}, it also learns tokens that APNS rejected with an
+ * invalid token error.
+ */
+public final class InactiveTokenFilter implements
+		FeedbackClient.BatchListener {
+
+	private final TokenFingerprintSet tokens;
+	private final BloomFilter front;
+
+	/**
+	 * @param expected the number of inactive tokens to size the filter for
+	 */
+	public InactiveTokenFilter(int expected) {
+		tokens = new TokenFingerprintSet(expected);
+		front = null;
+	}
+
+	/**
+	 * @param expected the number of inactive tokens to size the filter for
+	 * @param fpp the rate at which the Bloom filter lets lookups of active
+	 * tokens through to the fingerprints
+	 */
+	public InactiveTokenFilter(int expected, double fpp) {
+		tokens = new TokenFingerprintSet(expected);
+		front = new BloomFilter(expected, fpp);
+	}
+
+	/**
+	 * @param token the 32 bytes of an APNS device token
+	 */
+	public void add(byte[] token) {
+		add(token, 0);
+	}
+
+	private void add(byte[] token, int off) {
+		if (front != null) {
+			front.add(token, off);
+		}
+		tokens.add(token, off);
+	}
+
+	public void add(DeviceToken token) {
+		long[] words = token.getApnsWords();
+		if (front != null) {
+			front.add(words[0], words[1], words[2], words[3]);
+		}
+		tokens.add(words[0], words[1], words[2], words[3]);
+	}
+
+	/**
+	 * @param token a device token
+	 * @return true if the token is an APNS token that is known to be inactive
+	 */
+	public boolean isInactive(DeviceToken token) {
+		if (! token.isApnsToken()) {
+			return false;
+		}
+		long[] words = token.getApnsWords();
+		if ((front != null) && (! front.mightContain(words[0], words[1],
+				words[2], words[3]))) {
+			return false;
+		}
+		return tokens.contains(words[0], words[1], words[2], words[3]);
+	}
+
+	/**
+	 * @return the number of inactive tokens
+	 */
+	public int size() {
+		return tokens.size();
+	}
+
+	public void receiveInactiveTokens(FeedbackClient.Batch batch) {
+		byte[] token = new byte[TokenSet.TOKEN_LEN];
+		for (int k = 0; k < batch.size(); k ++) {
+			batch.getToken(k, token, 0);
+			add(token, 0);
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.sbandara.cloudpokes;
+
+import java.util.ArrayList;
+
+/**
+ * A lock-free variant of {@code AsyncRedoBlockingQueue} for many producers
+ * and a single consumer. Actions are kept in a {@code BatchRedoQueue} of
+ * fixed size, whose preallocated slots producers claim by sequence number, so
+ * that enqueuing takes a fetch-and-add and a CAS rather than monitors. A
+ * persistent consumer thread executes actions in batches and parks while the
+ * queue is empty.
+ */
+public final class LockFreeRedoQueue implements RedoQueue {
+
+	private final static int BATCH_SIZE = 64;
+
+	private final BatchRedoQueue<Runnable> ring;
+	private volatile long idle_at = 0;
+	private volatile Runnable idle_listener = null;
+	private final Thread consumer;
+
+	/**
+	 * @param size the minimum number of slots, which is rounded up to a power
+	 * of two
+	 * @param history_millis the minimum time an executed entry is retained
+	 */
+	public LockFreeRedoQueue(int size, int history_millis) {
+		ring = new BatchRedoQueue<Runnable>(size, history_millis);
+		consumer = new Thread(new Consumer(), "RedoQueueConsumer");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	/**
+	 * Registers an action that the consumer runs whenever it has executed all
+	 * published entries and is about to park.
+	 * @param listener the action to run, or null to unregister
+	 */
+	public void setIdleListener(Runnable listener) {
+		idle_listener = listener;
+	}
+
+	public void enqueue(Runnable action, int id) {
+		ring.enqueue(action, id);
+	}
+
+	private final class Consumer implements Runnable {
+
+		private final ArrayList<Runnable> batch = new ArrayList<Runnable>(
+				BATCH_SIZE);
+
+		private void execute() {
+			for (Runnable action : batch) {
+				if (ring.isStale()) {
+					break;
+				}
+				try {
+					action.run();
+				}
+				catch (RuntimeException e) {
+					System.out.println("Unhandled Exception.");
+				}
+			}
+		}
+
+		public void run() {
+			boolean is_idle = false;
+			for (;;) {
+				batch.clear();
+				if (ring.hasPending()) {
+					idle_at = -1;
+				}
+				if (ring.isStale()) {
+					Thread.interrupted();
+				}
+				if (ring.drainTo(batch, BATCH_SIZE) > 0) {
+					execute();
+					is_idle = false;
+					continue;
+				}
+				if (! is_idle) {
+					Runnable listener = idle_listener;
+					if (listener != null) {
+						try {
+							listener.run();
+						}
+						catch (RuntimeException e) {
+							System.out.println("Unhandled Exception.");
+						}
+					}
+					is_idle = true;
+					idle_at = ring.getCursor();
+					continue;
+				}
+				ring.awaitPending();
+				Thread.interrupted();
+			}
+		}
+	}
+
+	/**
+	 * Replays all executed entries after the one with the given identifier.
+	 * The action that the consumer is currently executing is interrupted, and
+	 * the rest of its batch is discarded.
+	 * @param id the identifier of the last entry not to replay
+	 * @throws EntryNotFoundException if the entry is no longer retained
+	 */
+	synchronized public void rewind(int id) throws EntryNotFoundException {
+		consumer.interrupt();
+		ring.rewind(id);
+	}
+
+	/**
+	 * Waits until all enqueued entries were executed and the consumer went
+	 * idle.
+	 */
+	public void purgeQueue() {
+		while ((ring.getCursor() != ring.getClaimed()) || (idle_at != ring
+				.getClaimed())) {
+			try {
+				Thread.sleep(1);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+}
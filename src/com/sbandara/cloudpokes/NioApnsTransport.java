@@ -0,0 +1,472 @@
+package com.sbandara.cloudpokes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+/**
+ * A non-blocking transport in which a single selector thread drives any
+ * number of APNS links. TLS is handled by an {@code SSLEngine} per link, and
+ * error responses are read inline by the selector thread, so that links do
+ * not need a thread of their own. Listeners are told about closed links on
+ * a single notifier thread, as they may connect again, which the selector
+ * thread must not wait for.
+ */
+final class NioApnsTransport implements Runnable {
+
+	private final static int CONNECT_TIMEOUT_MILLIS = 10000;
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<NioLink> pending =
+			new ConcurrentLinkedQueue<NioLink>();
+	private final ExecutorService notifier = Executors.newSingleThreadExecutor(
+			new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "ApnsNotifier");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	NioApnsTransport() throws IOException {
+		selector = Selector.open();
+		Thread selector_thread = new Thread(this, "ApnsSelector");
+		selector_thread.setDaemon(true);
+		selector_thread.start();
+	}
+
+	/**
+	 * Connects to the APNS dispatch service through the selector, and waits
+	 * until the connection is established. The TLS handshake completes
+	 * asynchronously, and frames written in the meantime are buffered.
+	 * @param gateway the gateway that provides the address and TLS context
+	 * @param buf_size the size of the outbound frame buffer in bytes
+	 * @param listener the listener to notify when APNS closes the link
+	 * @return the new link
+	 * @throws IOException if the connection could not be established in time
+	 */
+	ApnsLink connect(ApnsGateway gateway, int buf_size,
+			ApnsLink.Listener listener) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		NioLink link = null;
+		try {
+			channel.configureBlocking(false);
+			SSLEngine engine = gateway.createEngine();
+			if (engine != null) {
+				engine.beginHandshake();
+			}
+			link = new NioLink(channel, engine, buf_size, listener);
+			if (channel.connect(gateway.getAddress())) {
+				link.didConnect();
+			}
+			requestUpdate(link);
+			link.awaitConnect();
+			return link;
+		}
+		catch (IOException e) {
+			if (link != null) {
+				link.close();
+			}
+			ServiceConnector.closeQuietly(channel);
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the selector, which ends the selector thread, and stops the
+	 * notifier thread. Links must be closed beforehand.
+	 */
+	void close() {
+		ServiceConnector.closeQuietly(selector);
+		notifier.shutdown();
+	}
+
+	private void requestUpdate(NioLink link) {
+		pending.add(link);
+		selector.wakeup();
+	}
+
+	public void run() {
+		for (;;) {
+			try {
+				selector.select();
+				NioLink link;
+				while ((link = pending.poll()) != null) {
+					link.updateInterest();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					((NioLink) key.attachment()).process(key);
+				}
+			}
+			catch (ClosedSelectorException e) {
+				return;
+			}
+			catch (IOException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+	}
+
+	private final class NioLink extends ApnsLink {
+
+		private final SocketChannel channel;
+		private final SSLEngine engine;
+		private final ByteBuffer app_out, net_out, net_in, app_in;
+		private final byte[] response = new byte[ERROR_BUF_SIZE];
+		private int response_len = 0;
+		private SelectionKey key = null;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition drained = lock.newCondition(),
+				connected = lock.newCondition();
+		private boolean flush_requested = false;
+		private volatile boolean is_connected = false, is_closed = false;
+
+		private final OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				NioLink.this.write(b, off, len);
+			}
+			@Override
+			public void flush() throws IOException {
+				NioLink.this.flush();
+			}
+		};
+
+		NioLink(SocketChannel channel, SSLEngine engine, int buf_size,
+				Listener listener) {
+			super(listener);
+			this.channel = channel;
+			this.engine = engine;
+			app_out = ByteBuffer.allocateDirect(buf_size);
+			if (engine == null) {
+				net_out = null;
+				net_in = ByteBuffer.allocateDirect(ERROR_BUF_SIZE);
+				app_in = null;
+			}
+			else {
+				int packet_size = engine.getSession().getPacketBufferSize();
+				net_out = ByteBuffer.allocateDirect(packet_size);
+				net_in = ByteBuffer.allocateDirect(packet_size);
+				app_in = ByteBuffer.allocateDirect(engine.getSession()
+						.getApplicationBufferSize());
+			}
+		}
+
+		@Override
+		OutputStream getOutputStream() { return out; }
+
+		private void ensureOpen() throws IOException {
+			if (is_closed) {
+				throw new IOException("Connection closed.");
+			}
+		}
+
+		private void write(byte[] b, int off, int len) throws IOException {
+			lock.lock();
+			try {
+				while (len > 0) {
+					ensureOpen();
+					if (! app_out.hasRemaining()) {
+						flush_requested = true;
+						requestUpdate(this);
+						drained.awaitUninterruptibly();
+						continue;
+					}
+					int n = Math.min(len, app_out.remaining());
+					app_out.put(b, off, n);
+					off += n;
+					len -= n;
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		private void flush() throws IOException {
+			lock.lock();
+			try {
+				ensureOpen();
+				if (app_out.position() == 0) {
+					return;
+				}
+				flush_requested = true;
+			}
+			finally {
+				lock.unlock();
+			}
+			requestUpdate(this);
+		}
+
+		@Override
+		void close() {
+			is_closed = true;
+			ServiceConnector.closeQuietly(channel);
+			lock.lock();
+			try {
+				drained.signalAll();
+				connected.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		void didConnect() {
+			lock.lock();
+			try {
+				is_connected = true;
+				connected.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		void awaitConnect() throws IOException {
+			long deadline = System.nanoTime() + CONNECT_TIMEOUT_MILLIS *
+					1000000L;
+			lock.lock();
+			try {
+				while (! is_connected) {
+					ensureOpen();
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						throw new IOException("Connect timed out.");
+					}
+					connected.awaitNanos(remaining);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while connecting.");
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Closes the link, and tells the listener on the notifier thread if
+		 * the link was connected. A failed connect is reported to the caller
+		 * of {@code connect} instead.
+		 */
+		private void fail() {
+			if (is_closed) {
+				return;
+			}
+			close();
+			if (! is_connected) {
+				return;
+			}
+			try {
+				notifier.execute(new Runnable() {
+					public void run() {
+						didClose();
+					}
+				});
+			}
+			catch (RejectedExecutionException e) { }
+		}
+
+		private boolean isHandshaking(HandshakeStatus status) {
+			return (status != HandshakeStatus.NOT_HANDSHAKING) && (status !=
+					HandshakeStatus.FINISHED);
+		}
+
+		private boolean wantsWrite() {
+			if (engine != null) {
+				HandshakeStatus status = engine.getHandshakeStatus();
+				if ((net_out.position() > 0) || (status == HandshakeStatus
+						.NEED_WRAP)) {
+					return true;
+				}
+				if (isHandshaking(status)) {
+					return false;
+				}
+			}
+			lock.lock();
+			try {
+				return flush_requested && (app_out.position() > 0);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		void updateInterest() {
+			if (is_closed) {
+				return;
+			}
+			try {
+				if (key == null) {
+					key = channel.register(selector, 0, this);
+				}
+				int ops = SelectionKey.OP_CONNECT;
+				if (is_connected) {
+					ops = SelectionKey.OP_READ;
+					if (wantsWrite()) {
+						ops |= SelectionKey.OP_WRITE;
+					}
+				}
+				key.interestOps(ops);
+			}
+			catch (IOException e) {
+				fail();
+			}
+			catch (CancelledKeyException e) {
+				fail();
+			}
+		}
+
+		void process(SelectionKey key) {
+			try {
+				if (key.isConnectable() && channel.finishConnect()) {
+					didConnect();
+				}
+				if (key.isReadable()) {
+					doRead();
+				}
+				if ((! is_closed) && key.isWritable()) {
+					doWrite();
+				}
+				updateInterest();
+			}
+			catch (IOException e) {
+				fail();
+			}
+			catch (CancelledKeyException e) {
+				fail();
+			}
+		}
+
+		private void runDelegatedTasks() {
+			Runnable task;
+			while ((task = engine.getDelegatedTask()) != null) {
+				task.run();
+			}
+		}
+
+		private void doRead() throws IOException {
+			int n_byte = channel.read(net_in);
+			net_in.flip();
+			if (engine == null) {
+				consumeResponse(net_in);
+			}
+			else {
+				for (;;) {
+					SSLEngineResult result = engine.unwrap(net_in, app_in);
+					if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+						runDelegatedTasks();
+					}
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						n_byte = -1;
+						break;
+					}
+					if ((result.getStatus() != SSLEngineResult.Status.OK) ||
+							((result.bytesConsumed() == 0) && (result
+							.bytesProduced() == 0))) {
+						break;
+					}
+				}
+				app_in.flip();
+				consumeResponse(app_in);
+				app_in.compact();
+			}
+			net_in.compact();
+			if ((n_byte == -1) && (! is_closed)) {
+				fail();
+			}
+		}
+
+		private void consumeResponse(ByteBuffer src) {
+			while (src.hasRemaining() && (response_len < ERROR_BUF_SIZE)) {
+				response[response_len ++] = src.get();
+			}
+			src.position(src.limit());
+			if ((response_len == ERROR_BUF_SIZE) && (! is_closed)) {
+				didReceiveResponse(response);
+				fail();
+			}
+		}
+
+		private boolean writeNetBuffer(ByteBuffer buf) throws IOException {
+			buf.flip();
+			channel.write(buf);
+			boolean is_drained = ! buf.hasRemaining();
+			buf.compact();
+			return is_drained;
+		}
+
+		private void doWrite() throws IOException {
+			lock.lock();
+			try {
+				if (engine == null) {
+					writeNetBuffer(app_out);
+				}
+				else {
+					wrapAndWrite();
+				}
+				if (app_out.position() == 0) {
+					flush_requested = false;
+				}
+				drained.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		private void wrapAndWrite() throws IOException {
+			for (;;) {
+				if ((net_out.position() > 0) && (! writeNetBuffer(net_out))) {
+					return;
+				}
+				HandshakeStatus status = engine.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) {
+					runDelegatedTasks();
+					continue;
+				}
+				if ((status != HandshakeStatus.NEED_WRAP) && (isHandshaking(
+						status) || (app_out.position() == 0))) {
+					return;
+				}
+				app_out.flip();
+				SSLEngineResult result = engine.wrap(app_out, net_out);
+				app_out.compact();
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new IOException("TLS session closed.");
+				}
+				if ((result.bytesConsumed() == 0) && (result.bytesProduced()
+						== 0)) {
+					return;
+				}
+			}
+		}
+	}
+}
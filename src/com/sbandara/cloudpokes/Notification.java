@@ -4,25 +4,76 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
 
 public abstract class Notification {
 
+	/**
+	 * APNS priorities: deliver at once, or at a time that saves power on the
+	 * device.
+	 */
+	public final static int PRIORITY_IMMEDIATE = 10, PRIORITY_POWER_SAVING = 5;
+	
 	private String sound = null, message = null;
+	private int badge = -1, priority;
 	private boolean did_seal = false;
-	protected final JsonObject json_payload = new JsonObject();
+	private volatile byte[] encoded = null;
+	protected JsonObject json_payload;
 	private final DeviceToken token;
+	final NotificationTemplate template;
+	private volatile CompletableFuture<PushResult> result = null;
+	
+	private final static Executor completer = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "PushResults");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	
 	protected Notification(DeviceToken token) {
+		this(token, null);
+	}
+	
+	Notification(DeviceToken token, NotificationTemplate template) {
 		this.token = token;
+		this.template = template;
+		json_payload = (template == null) ? new JsonObject() : null;
+		priority = (template == null) ? PRIORITY_IMMEDIATE : template
+				.getPriority();
+	}
+	
+	private void ensureNotTemplated() {
+		if (template != null) {
+			throw new IllegalStateException("Defined by the template.");
+		}
 	}
 	
 	public final DeviceToken getToken() { return token; }
 	
+	/**
+	 * Invalidates the sealed payload and its encoding, so that a changed
+	 * notification is sealed and encoded again when it is next sent. Until
+	 * then, frames that are written again after an error keep the content
+	 * that was sent.
+	 */
+	private void didMutate() {
+		did_seal = false;
+	}
+	
 	public final Notification setSound(String sound) {
+		ensureNotTemplated();
 		this.sound = sound;
+		didMutate();
 		return this;
 	}
 	
@@ -31,35 +82,168 @@ public abstract class Notification {
 	public final String getSound() { return sound; }
 	
 	public final Notification setMessage(String message) {
+		ensureNotTemplated();
 		this.message = message;
+		didMutate();
 		return this;
 	}
 	
 	public final String getMessage() { return message; }
 	
+	/**
+	 * Sets the number to display on the app icon. On Android, the badge is
+	 * delivered as the {@code "badge"} member of the data object.
+	 * @param badge the badge number, which must not be negative
+	 * @return this notification for fluent use
+	 */
+	public final Notification setBadge(int badge) {
+		if (badge < 0) {
+			throw new IllegalArgumentException("Badge must not be negative.");
+		}
+		this.badge = badge;
+		didMutate();
+		return this;
+	}
+	
+	/**
+	 * @return the badge number, or -1 if no badge was set
+	 */
+	public final int getBadge() { return badge; }
+	
+	/**
+	 * Sets the APNS priority. With pipelined dispatch and a low priority lane,
+	 * power saving notifications are written in bursts on connections of
+	 * their own. GCM notifications ignore the priority.
+	 * @param priority {@code PRIORITY_IMMEDIATE} or {@code
+	 * PRIORITY_POWER_SAVING}
+	 * @return this notification for fluent use
+	 */
+	public final Notification setPriority(int priority) {
+		if ((priority != PRIORITY_IMMEDIATE) && (priority !=
+				PRIORITY_POWER_SAVING)) {
+			throw new IllegalArgumentException("Bad priority.");
+		}
+		this.priority = priority;
+		didMutate();
+		return this;
+	}
+	
+	public final int getPriority() { return priority; }
+	
 	public final Notification setCustom(String key, JsonValue value) {
 		if ("aps".equals(key)) {
 			throw new IllegalArgumentException(key + " is a reserved key.");
 		}
+		if ((template != null) && template.isStaticKey(key)) {
+			throw new IllegalArgumentException(key + " is set by the template.");
+		}
+		if (json_payload == null) {
+			json_payload = new JsonObject();
+		}
 		json_payload.set(key, value);
+		didMutate();
 		return this;
 	}
 		
+	/**
+	 * Sends this notification. It can be changed and sent again afterwards.
+	 */
 	public void send() {
+		seal();
+		dispatch();
+	}
+	
+	/**
+	 * Seals the payload and encodes it once, unless that was done since the
+	 * notification was last changed, so that every write and resend of the
+	 * notification costs no more than a copy.
+	 */
+	final void seal() {
 		if (! did_seal) {
-			sealPayload();
-			did_seal = true;		
+			if (template == null) {
+				sealPayload();
+			}
+			encoded = encode();
+			did_seal = true;
+		}
+	}
+
+	/**
+	 * Sends this notification and returns a future that completes with its
+	 * outcome. Whether the call returns before the notification was written
+	 * depends on the sender: pipelined APNS dispatch and asynchronous or
+	 * batching GCM senders return right away. The future completes on a
+	 * thread that all notifications share, so continuations that block
+	 * should run on an executor of their own.
+	 * @return a future that completes once the notification was accepted or
+	 * rejected
+	 */
+	public CompletableFuture<PushResult> sendAsync() {
+		CompletableFuture<PushResult> future = newResult();
+		send();
+		return future;
+	}
+	
+	/**
+	 * @return a new future for the outcome of this notification
+	 */
+	final CompletableFuture<PushResult> newResult() {
+		CompletableFuture<PushResult> future =
+				new CompletableFuture<PushResult>();
+		result = future;
+		return future;
+	}
+	
+	/**
+	 * @return the future awaiting the outcome of this notification, or a new
+	 * one if none does
+	 */
+	final CompletableFuture<PushResult> getResult() {
+		CompletableFuture<PushResult> future = result;
+		return (future == null) ? newResult() : future;
+	}
+	
+	/**
+	 * @return true if a future awaits the outcome of this notification
+	 */
+	final boolean isAwaited() { return result != null; }
+	
+	/**
+	 * Completes the future of this notification, if any, on the completer
+	 * thread, so that continuations never run on a timer or writer thread of
+	 * the sender, nor while it holds a lock.
+	 */
+	final void didComplete(final PushResult outcome) {
+		final CompletableFuture<PushResult> future = result;
+		if (future != null) {
+			completer.execute(new Runnable() {
+				public void run() {
+					future.complete(outcome);
+				}
+			});
 		}
-		dispatch();
 	}
 
 	abstract void sealPayload();
+	
+	/**
+	 * @return the encoding of the sealed payload, for APNS the whole frame
+	 */
+	abstract byte[] encode();
+	
+	/**
+	 * @return the encoding made when the notification was last sealed, or
+	 * null if it never was
+	 */
+	final byte[] getEncoded() { return encoded; }
 
 	abstract void dispatch();
 	
+	private final static Charset UTF_8 = Charset.forName("UTF-8");
+
 	final static byte[] jsonToByteArray(JsonValue json) {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		OutputStreamWriter writer = new OutputStreamWriter(baos);
+		OutputStreamWriter writer = new OutputStreamWriter(baos, UTF_8);
 		try {
 			json.writeTo(writer);
 			writer.close();
@@ -73,11 +257,16 @@ public abstract class Notification {
 	abstract void writeToOutputStream(OutputStream out) throws IOException;
 	
 	public final static Notification withToken(DeviceToken token) {
+		return withToken(token, null);
+	}
+	
+	static Notification withToken(DeviceToken token,
+			NotificationTemplate template) {
 		if (token.isApnsToken()) {
-			return new ApnsNotification(token);
+			return new ApnsNotification(token, template);
 		}
 		else if (token.isGcmToken()) {
-			return new GcmNotification(token);
+			return new GcmNotification(token, template);
 		}
 		else {
 			throw new UnsupportedOperationException("No sender for token type");
@@ -0,0 +1,265 @@
+package com.sbandara.cloudpokes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Holds notifications back for a short window, during which a later
+ * notification to the same device and with the same collapse key replaces
+ * the pending one. Only the last notification of a burst of updates is
+ * sent, and it is sent at the end of the window that the first one opened.
+ * Devices are matched by the equality of their tokens.
+ * <p>
+ * A replaced notification is never sent. If its outcome is awaited, its
+ * future completes with the outcome of the notification that was sent in
+ * its place, or exceptionally if sending that notification failed.
+ * <p>
+ * Notifications whose window ended are sent on an executor, so that a slow
+ * send does not hold up the timer. By default, that is a shared pool of a
+ * few daemon threads with a bounded queue. Once the queue is full, the timer
+ * thread sends notifications itself, which holds back later windows.
+ */
+public final class NotificationCoalescer {
+
+	private final static Timer coalesce_timer = new Timer("CoalescingTimer",
+			true);
+	private final static int MAX_THREADS = 4, MAX_QUEUED = 4096;
+	private final static ThreadPoolExecutor shared_dispatcher =
+			new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit
+			.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED),
+			new ThreadFactory() {
+		private final AtomicInteger n_thread = new AtomicInteger();
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "Coalescer-" + n_thread
+					.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}, new ThreadPoolExecutor.CallerRunsPolicy());
+
+	static {
+		shared_dispatcher.allowCoreThreadTimeOut(true);
+	}
+
+	private final int window_millis;
+	private final Executor dispatcher;
+	private final HashMap<Key, Pending> pending = new HashMap<Key, Pending>();
+	private long n_collapsed = 0;
+
+	private final static class Key {
+
+		final DeviceToken token;
+		final String collapse_key;
+
+		Key(DeviceToken token, String collapse_key) {
+			this.token = token;
+			this.collapse_key = collapse_key;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (! (other instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) other;
+			return token.equals(key.token) && ((collapse_key == null) ?
+					(key.collapse_key == null) : collapse_key.equals(key
+					.collapse_key));
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * token.hashCode() + ((collapse_key == null) ? 0 :
+					collapse_key.hashCode());
+		}
+	}
+
+	private final static class Pending {
+
+		Notification notification;
+		List<Notification> replaced = null;
+
+		Pending(Notification notification) {
+			this.notification = notification;
+		}
+	}
+
+	/**
+	 * @param window_millis the time for which a notification is held back
+	 */
+	public NotificationCoalescer(int window_millis) {
+		this(window_millis, shared_dispatcher);
+	}
+
+	/**
+	 * @param window_millis the time for which a notification is held back
+	 * @param dispatcher the executor that sends notifications whose window
+	 * ended. If it rejects a notification, its future completes
+	 * exceptionally.
+	 */
+	public NotificationCoalescer(int window_millis, Executor dispatcher) {
+		if (window_millis < 0) {
+			throw new IllegalArgumentException("Bad coalescing window.");
+		}
+		if (dispatcher == null) {
+			throw new IllegalArgumentException("Need an executor.");
+		}
+		this.window_millis = window_millis;
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Sends a notification at the end of the window, unless a later one with
+	 * the same token and collapse key replaces it.
+	 * @param notification the notification to send
+	 * @param collapse_key the kind of update, or null to collapse all
+	 * notifications to the device
+	 */
+	public void send(Notification notification, String collapse_key) {
+		final Key key = new Key(notification.getToken(), collapse_key);
+		synchronized (pending) {
+			Pending entry = pending.get(key);
+			if (entry != null) {
+				if (entry.notification.isAwaited()) {
+					if (entry.replaced == null) {
+						entry.replaced = new ArrayList<Notification>(2);
+					}
+					entry.replaced.add(entry.notification);
+				}
+				entry.notification = notification;
+				n_collapsed ++;
+				return;
+			}
+			pending.put(key, new Pending(notification));
+		}
+		coalesce_timer.schedule(new TimerTask() {
+			public void run() {
+				Pending entry;
+				synchronized (pending) {
+					entry = pending.remove(key);
+				}
+				if (entry != null) {
+					dispatchLater(entry);
+				}
+			}
+		}, window_millis);
+	}
+
+	/**
+	 * Sends a notification like {@code send}, and returns a future for the
+	 * outcome of the notification that is eventually sent in its place.
+	 */
+	public CompletableFuture<PushResult> sendAsync(Notification notification,
+			String collapse_key) {
+		CompletableFuture<PushResult> future = notification.newResult();
+		send(notification, collapse_key);
+		return future;
+	}
+
+	/**
+	 * Lets the futures of the replaced notifications follow the outcome of
+	 * the one sent in their place.
+	 */
+	private static void chainReplaced(Pending entry) {
+		if (entry.replaced == null) {
+			return;
+		}
+		CompletableFuture<PushResult> outcome = entry.notification.getResult();
+		for (final Notification replaced : entry.replaced) {
+			outcome.whenComplete(new BiConsumer<PushResult, Throwable>() {
+				public void accept(PushResult result, Throwable failure) {
+					if (failure == null) {
+						replaced.didComplete(result);
+					}
+					else {
+						replaced.getResult().completeExceptionally(failure);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Completes the future of the notification to send exceptionally, and
+	 * with it those of the notifications it replaced.
+	 */
+	private static void didFail(Pending entry, Throwable failure) {
+		System.out.println("Failed to send coalesced notification.");
+		if (entry.notification.isAwaited()) {
+			entry.notification.getResult().completeExceptionally(failure);
+		}
+	}
+
+	private static void dispatch(Pending entry) {
+		chainReplaced(entry);
+		try {
+			entry.notification.send();
+		}
+		catch (Throwable e) {
+			didFail(entry, e);
+		}
+	}
+
+	/**
+	 * Hands a notification whose window ended to the dispatcher. Runs on the
+	 * timer thread, which must survive any failure.
+	 */
+	private void dispatchLater(final Pending entry) {
+		try {
+			dispatcher.execute(new Runnable() {
+				public void run() {
+					dispatch(entry);
+				}
+			});
+		}
+		catch (Throwable e) {
+			chainReplaced(entry);
+			didFail(entry, e);
+		}
+	}
+
+	/**
+	 * Sends all pending notifications without waiting for their windows to
+	 * end.
+	 */
+	public void flush() {
+		List<Pending> entries;
+		synchronized (pending) {
+			entries = new ArrayList<Pending>(pending.values());
+			pending.clear();
+		}
+		for (Pending entry : entries) {
+			dispatch(entry);
+		}
+	}
+
+	/**
+	 * @return the number of notifications held back
+	 */
+	public int getPendingCount() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * @return the number of notifications that were replaced and not sent
+	 */
+	public long getCollapsedCount() {
+		synchronized (pending) {
+			return n_collapsed;
+		}
+	}
+}
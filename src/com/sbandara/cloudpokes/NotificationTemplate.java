@@ -0,0 +1,307 @@
+package com.sbandara.cloudpokes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.sbandara.cloudpokes.util.PacketBuilder;
+
+/**
+ * A payload that is shared by many notifications. The message, sound and
+ * custom members of a template are serialized once per platform, when the
+ * first notification is created from it. Notifications created by
+ * {@code withToken} may only add a badge and further custom members, which
+ * are spliced into the pre-encoded payload, so that encoding cost is
+ * proportional to the per-recipient values only.
+ * <pre>
+ * NotificationTemplate template = new NotificationTemplate()
+ *         .setMessage("New episode available").setDefaultSound();
+ * template.withToken(token).setBadge(3).send();
+ * </pre>
+ */
+public final class NotificationTemplate {
+
+	private String sound = null, message = null;
+	private boolean is_default_sound = false;
+	private int priority = Notification.PRIORITY_IMMEDIATE;
+	private final JsonObject custom = new JsonObject();
+	private byte[] apns_head = null, apns_tail = null, apns_payload = null,
+			gcm_data = null, gcm_payload = null;
+
+	private static byte[] utf8(String str) {
+		return str.getBytes(Charset.forName("UTF-8"));
+	}
+
+	private void ensureNotCompiled() {
+		if (apns_head != null) {
+			throw new IllegalStateException("Template is already in use.");
+		}
+	}
+
+	public NotificationTemplate setSound(String sound) {
+		ensureNotCompiled();
+		this.sound = sound;
+		is_default_sound = false;
+		return this;
+	}
+
+	/**
+	 * Selects the default sound of each platform, that is, {@code "default"}
+	 * on iOS and no sound on Android.
+	 * @return this template for fluent use
+	 */
+	public NotificationTemplate setDefaultSound() {
+		ensureNotCompiled();
+		sound = null;
+		is_default_sound = true;
+		return this;
+	}
+
+	public NotificationTemplate setMessage(String message) {
+		ensureNotCompiled();
+		this.message = message;
+		return this;
+	}
+
+	public NotificationTemplate setCustom(String key, JsonValue value) {
+		ensureNotCompiled();
+		if ("aps".equals(key) || "badge".equals(key)) {
+			throw new IllegalArgumentException(key + " is a reserved key.");
+		}
+		custom.set(key, value);
+		return this;
+	}
+
+	/**
+	 * Sets the APNS priority of the notifications created from this template,
+	 * which they may override.
+	 * @param priority {@code Notification.PRIORITY_IMMEDIATE} or {@code
+	 * Notification.PRIORITY_POWER_SAVING}
+	 * @return this template for fluent use
+	 */
+	public NotificationTemplate setPriority(int priority) {
+		ensureNotCompiled();
+		if ((priority != Notification.PRIORITY_IMMEDIATE) && (priority !=
+				Notification.PRIORITY_POWER_SAVING)) {
+			throw new IllegalArgumentException("Bad priority.");
+		}
+		this.priority = priority;
+		return this;
+	}
+
+	int getPriority() { return priority; }
+
+	boolean isStaticKey(String key) {
+		return "badge".equals(key) || (custom.get(key) != null);
+	}
+
+	/**
+	 * Turns a serialized object into a list of members to append to another
+	 * object, by replacing its opening brace with a comma and dropping the
+	 * closing brace.
+	 */
+	private static byte[] toMembers(byte[] object) {
+		if (object.length == 2) {
+			return new byte[0];
+		}
+		byte[] members = Arrays.copyOf(object, object.length - 1);
+		members[0] = ',';
+		return members;
+	}
+
+	private synchronized void compile() {
+		if (apns_head != null) {
+			return;
+		}
+		JsonObject aps = new JsonObject().add("alert", message);
+		if (is_default_sound) {
+			aps.add("sound", "default");
+		}
+		else if (sound != null) {
+			aps.add("sound", sound);
+		}
+		byte[] aps_bytes = Notification.jsonToByteArray(aps);
+		byte[] head = utf8("{\"aps\":");
+		byte[] apns = Arrays.copyOf(head, head.length + aps_bytes.length
+				- 1);
+		System.arraycopy(aps_bytes, 0, apns, head.length, aps_bytes.length
+				- 1);
+		byte[] members = toMembers(Notification.jsonToByteArray(custom));
+		byte[] tail = new byte[members.length + 1];
+		tail[0] = '}';
+		System.arraycopy(members, 0, tail, 1, members.length);
+		JsonObject data = new JsonObject().add("message", message);
+		if ((! is_default_sound) && (sound != null)) {
+			data.add("sound", sound);
+		}
+		for (JsonObject.Member member : custom) {
+			data.add(member.getName(), member.getValue());
+		}
+		byte[] data_bytes = Notification.jsonToByteArray(data);
+		gcm_data = Arrays.copyOf(data_bytes, data_bytes.length - 1);
+		gcm_payload = data_bytes;
+		apns_payload = Arrays.copyOf(apns, apns.length + tail.length + 1);
+		System.arraycopy(tail, 0, apns_payload, apns.length, tail.length);
+		apns_payload[apns_payload.length - 1] = '}';
+		apns_tail = tail;
+		apns_head = apns;
+	}
+
+	/**
+	 * Creates a notification whose payload is defined by this template.
+	 * Once the first notification was created, the template may no longer
+	 * be modified.
+	 * @param token the device token of the recipient
+	 * @return a new notification, to which a badge and custom members other
+	 * than those of the template may be added
+	 */
+	public Notification withToken(DeviceToken token) {
+		compile();
+		return Notification.withToken(token, this);
+	}
+
+	/**
+	 * A frame sent to an APNS device by {@code broadcast}. It holds no more
+	 * than the token and identifier, and is encoded from the payload of the
+	 * template whenever it is written.
+	 */
+	private final class BroadcastFrame implements ApnsFrame {
+
+		private final DeviceToken token;
+		private final int identifier = ApnsNotification.nextIdentifier();
+		private long journal_end = -1;
+
+		BroadcastFrame(DeviceToken token) {
+			this.token = token;
+		}
+
+		public int getIdentifier() { return identifier; }
+
+		public DeviceToken getToken() { return token; }
+
+		public int getPriority() { return priority; }
+
+		public long getJournalEnd() { return journal_end; }
+
+		public void setJournalEnd(long journal_end) {
+			this.journal_end = journal_end;
+		}
+
+		public void writeFrame(PacketBuilder builder) {
+			builder.putLongArrayItem(ApnsNotification.ID_TOKEN, token
+					.getApnsWords());
+			builder.putArrayItem(ApnsNotification.ID_PAYLOAD, apns_payload);
+			ApnsNotification.finishFrame(builder, this);
+		}
+
+		public void writeToOutputStream(OutputStream out) throws IOException {
+			ApnsNotification.buildFrame(this).writeTo(out);
+		}
+
+		public ByteBuffer encodeFrame() throws IOException {
+			return ApnsNotification.buildFrame(this).view().asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * Sends the payload of this template to every device in a list. The
+	 * payload is encoded once. APNS devices are sent bare frames that differ
+	 * only in their token and identifier, and Android devices are addressed
+	 * by multicast requests of up to 1000 recipients each.
+	 * @param tokens the device tokens of the recipients
+	 * @return the number of notifications sent
+	 */
+	public int broadcast(Iterable<DeviceToken> tokens) {
+		compile();
+		int count = 0;
+		GcmMulticast request = null;
+		for (DeviceToken token : tokens) {
+			count ++;
+			if (! token.isGcmToken()) {
+				if (! token.isApnsToken()) {
+					throw new UnsupportedOperationException(
+							"No sender for token type");
+				}
+				ApnsPushSender.getInstance().sendFrame(new BroadcastFrame(
+						token));
+				continue;
+			}
+			if (request == null) {
+				request = new GcmMulticast(gcm_payload);
+			}
+			if (request.add(Notification.withToken(token, this))) {
+				GcmPushSender.getInstance().sendMulticast(request);
+				request = null;
+			}
+		}
+		if (request != null) {
+			GcmPushSender.getInstance().sendMulticast(request);
+		}
+		return count;
+	}
+
+	private static boolean isStatic(Notification notification) {
+		return (notification.getBadge() < 0) && ((notification.json_payload ==
+				null) || notification.json_payload.isEmpty());
+	}
+
+	private static void writeMembers(Writer writer, JsonObject members)
+			throws IOException {
+		for (JsonObject.Member member : members) {
+			writer.write(',');
+			JsonValue.valueOf(member.getName()).writeTo(writer);
+			writer.write(':');
+			member.getValue().writeTo(writer);
+		}
+	}
+
+	void writeApnsPayload(PacketBuilder builder, Notification notification)
+			throws IOException {
+		if (isStatic(notification)) {
+			builder.putArrayItem(ApnsNotification.ID_PAYLOAD, apns_payload);
+			return;
+		}
+		Writer writer = builder.beginItem(ApnsNotification.ID_PAYLOAD);
+		builder.appendToItem(apns_head);
+		if (notification.getBadge() >= 0) {
+			writer.write(",\"badge\":");
+			writer.write(Integer.toString(notification.getBadge()));
+		}
+		builder.appendToItem(apns_tail);
+		if (notification.json_payload != null) {
+			writeMembers(writer, notification.json_payload);
+		}
+		writer.write('}');
+		builder.endItem();
+	}
+
+	/**
+	 * @return the serialized GCM data object of a notification created from
+	 * this template
+	 */
+	byte[] getGcmData(Notification notification) {
+		if (isStatic(notification)) {
+			return gcm_payload;
+		}
+		JsonObject dynamic = new JsonObject();
+		if (notification.getBadge() >= 0) {
+			dynamic.add("badge", notification.getBadge());
+		}
+		if (notification.json_payload != null) {
+			for (JsonObject.Member member : notification.json_payload) {
+				dynamic.add(member.getName(), member.getValue());
+			}
+		}
+		byte[] members = toMembers(Notification.jsonToByteArray(dynamic));
+		byte[] data = Arrays.copyOf(gcm_data, gcm_data.length + members.length
+				+ 1);
+		System.arraycopy(members, 0, data, gcm_data.length, members.length);
+		data[data.length - 1] = '}';
+		return data;
+	}
+}
@@ -0,0 +1,69 @@
+package com.sbandara.cloudpokes;
+
+/**
+ * The outcome of a notification sent by {@code Notification.sendAsync}.
+ * <p>
+ * APNS does not acknowledge notifications. A notification is considered
+ * accepted once the dispatch connection has carried it without an error
+ * response for the retention time of the redo history. A rejected
+ * notification carries the status code of the APNS error response, and
+ * {@code HANGUP} if the connection was lost before it could be confirmed.
+ * For GCM, the result reflects the entry of the {@code results} array that
+ * belongs to the notification.
+ */
+public final class PushResult {
+
+	/**
+	 * The status of a notification whose connection was closed before the
+	 * notification was confirmed.
+	 */
+	public final static int HANGUP = ApnsLink.HANGUP;
+
+	private final Notification notification;
+	private final boolean is_accepted;
+	private final int status;
+	private final String error, canonical_id;
+
+	private PushResult(Notification notification, boolean is_accepted,
+			int status, String error, String canonical_id) {
+		this.notification = notification;
+		this.is_accepted = is_accepted;
+		this.status = status;
+		this.error = error;
+		this.canonical_id = canonical_id;
+	}
+
+	static PushResult apns(Notification notification, int status) {
+		return new PushResult(notification, status == ApnsLink.OK, status,
+				null, null);
+	}
+
+	static PushResult gcmSent(Notification notification, String reg_id) {
+		return new PushResult(notification, true, 0, null, reg_id);
+	}
+
+	static PushResult gcmFailed(Notification notification, String error) {
+		return new PushResult(notification, false, 0, error, null);
+	}
+
+	public Notification getNotification() { return notification; }
+
+	public boolean isAccepted() { return is_accepted; }
+
+	/**
+	 * @return the APNS status code, which is zero for accepted notifications
+	 * and for all GCM notifications
+	 */
+	public int getStatus() { return status; }
+
+	/**
+	 * @return the GCM error string, or null if none was returned or the
+	 * request failed altogether
+	 */
+	public String getError() { return error; }
+
+	/**
+	 * @return the canonical registration ID returned by GCM, or null
+	 */
+	public String getCanonicalId() { return canonical_id; }
+}
@@ -0,0 +1,17 @@
+package com.sbandara.cloudpokes;
+
+/**
+ * A queue of actions that are executed in order by a single consumer, and
+ * that are retained after execution so that they can be replayed from a
+ * given entry on.
+ */
+interface RedoQueue {
+
+	void enqueue(Runnable action, int id);
+
+	void rewind(int id) throws EntryNotFoundException;
+
+	void purgeQueue();
+
+	void setIdleListener(Runnable listener);
+}
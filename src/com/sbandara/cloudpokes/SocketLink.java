@@ -0,0 +1,64 @@
+package com.sbandara.cloudpokes;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A link over a blocking socket. A dedicated thread waits for the error
+ * response of APNS.
+ */
+final class SocketLink extends ApnsLink {
+	
+	private final Socket socket;
+	private final OutputStream out;
+	
+	SocketLink(Socket socket, int buf_size, Listener listener)
+			throws IOException {
+		super(listener);
+		this.socket = socket;
+		socket.setSoTimeout(0);
+		out = new BufferedOutputStream(socket.getOutputStream(), buf_size);
+		ErrorReceiver observer = new ErrorReceiver(socket.getInputStream());
+		observer.start();
+	}
+	
+	@Override
+	OutputStream getOutputStream() { return out; }
+	
+	@Override
+	void close() {
+		ServiceConnector.closeQuietly(socket);
+	}
+
+	private final class ErrorReceiver extends Thread {
+		
+		private final InputStream input_stream;
+		
+		ErrorReceiver(InputStream input_stream) {
+			this.input_stream = input_stream;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				byte[] pack = new byte[ERROR_BUF_SIZE];
+				int n_byte, off = 0;
+				while (off < pack.length) {
+					n_byte = input_stream.read(pack, off, pack.length - off);
+					if (n_byte == -1) {
+						throw new IOException("Connection dropped.");
+					}
+					off += n_byte;
+				}
+				didReceiveResponse(pack);
+			}
+			catch (IOException e) {
+				System.out.println(e.getMessage());
+			}
+			didClose();
+		}
+	}
+}
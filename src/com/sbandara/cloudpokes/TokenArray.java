@@ -0,0 +1,124 @@
+package com.sbandara.cloudpokes;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A growable array of APNS device tokens, packed as four longs per token.
+ * Iterating over the array creates each {@code DeviceToken} only when it is
+ * reached, so that an audience of millions can be passed to
+ * {@code NotificationTemplate.broadcast} without holding a token object for
+ * each device.
+ */
+public final class TokenArray implements Iterable<DeviceToken> {
+	
+	private final static int WORDS = 4;
+	
+	/**
+	 * The most tokens an array can hold, as they are packed into a single
+	 * array of longs.
+	 */
+	final static int MAX_CAPACITY = (Integer.MAX_VALUE - 8) / WORDS;
+	
+	private long[] words;
+	private int size = 0;
+	
+	public TokenArray() {
+		this(1024);
+	}
+	
+	/**
+	 * @param capacity the number of tokens to allocate space for
+	 */
+	public TokenArray(int capacity) {
+		if (capacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException("Too many tokens.");
+		}
+		words = new long[WORDS * Math.max(capacity, 1)];
+	}
+	
+	void add(long w0, long w1, long w2, long w3) {
+		if (WORDS * size == words.length) {
+			if (size == MAX_CAPACITY) {
+				throw new IllegalStateException("Token array is full.");
+			}
+			long[] grown = new long[WORDS * (int) Math.min(2L * size,
+					MAX_CAPACITY)];
+			System.arraycopy(words, 0, grown, 0, words.length);
+			words = grown;
+		}
+		int i = WORDS * size ++;
+		words[i] = w0;
+		words[i + 1] = w1;
+		words[i + 2] = w2;
+		words[i + 3] = w3;
+	}
+	
+	/**
+	 * @param token the 32 bytes of an APNS device token
+	 */
+	public void add(byte[] token) {
+		if (token.length != 32) {
+			throw new IllegalArgumentException("Not an APNS token.");
+		}
+		ByteBuffer buf = ByteBuffer.wrap(token);
+		add(buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong());
+	}
+	
+	long word(int k, int w) {
+		return words[WORDS * k + w];
+	}
+	
+	/**
+	 * @return the number of tokens in the array
+	 */
+	public int size() { return size; }
+	
+	/**
+	 * @param k the index of the token
+	 * @return a new device token
+	 */
+	public DeviceToken get(int k) {
+		if ((k < 0) || (k >= size)) {
+			throw new IndexOutOfBoundsException();
+		}
+		int i = WORDS * k;
+		return new DeviceToken(words[i], words[i + 1], words[i + 2],
+				words[i + 3]);
+	}
+	
+	/**
+	 * Copies a token to an array without allocating.
+	 * @param k the index of the token
+	 * @param dst the array to copy the 32 bytes of the token to
+	 * @param off the offset into the array
+	 */
+	public void getToken(int k, byte[] dst, int off) {
+		if ((k < 0) || (k >= size)) {
+			throw new IndexOutOfBoundsException();
+		}
+		ByteBuffer buf = ByteBuffer.wrap(dst, off, 32);
+		for (int w = 0; w < WORDS; w ++) {
+			buf.putLong(words[WORDS * k + w]);
+		}
+	}
+	
+	public Iterator<DeviceToken> iterator() {
+		return new Iterator<DeviceToken>() {
+			private int next = 0;
+			public boolean hasNext() {
+				return next < size;
+			}
+			public DeviceToken next() {
+				if (next >= size) {
+					throw new NoSuchElementException();
+				}
+				return get(next ++);
+			}
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
@@ -0,0 +1,473 @@
+package com.sbandara.cloudpokes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.sbandara.cloudpokes.util.TokenSet;
+
+/**
+ * Loads a campaign audience of APNS device tokens into a {@code TokenArray}.
+ * Tokens are read either as lines of Base64 or hex, or as raw 32-byte
+ * records, and are decoded straight into packed longs. Lines that do not
+ * decode to exactly 32 bytes are rejected, and repeated tokens are dropped,
+ * keeping the first occurrence.
+ * <p>
+ * A file is mapped in regions that are parsed on as many threads as set,
+ * so that loading a large file is bound by the disk rather than by a single
+ * core, and repeated tokens are then found on as many threads. The tokens
+ * keep the order of the file.
+ */
+public final class TokenLoader {
+
+	public enum Format { BASE64, HEX, RAW }
+
+	private final static int TOKEN_LEN = TokenSet.TOKEN_LEN;
+	private final static int MAX_LINE = 4096, BUFFER_SIZE = 1 << 16;
+	private final static long MAX_REGION = 1 << 30;
+	private final static int MAX_PARTS = 127;
+	private final static byte DUPLICATE = -1;
+	private final static byte[] DIGITS = new byte[128];
+
+	static {
+		Arrays.fill(DIGITS, (byte) -1);
+		for (int k = 0; k < 10; k ++) {
+			DIGITS['0' + k] = (byte) k;
+		}
+		for (int k = 0; k < 6; k ++) {
+			DIGITS['a' + k] = DIGITS['A' + k] = (byte) (10 + k);
+		}
+	}
+
+	private final static byte[] SEXTETS = new byte[128];
+
+	static {
+		Arrays.fill(SEXTETS, (byte) -1);
+		for (int k = 0; k < 26; k ++) {
+			SEXTETS['A' + k] = (byte) k;
+			SEXTETS['a' + k] = (byte) (26 + k);
+		}
+		for (int k = 0; k < 10; k ++) {
+			SEXTETS['0' + k] = (byte) (52 + k);
+		}
+		SEXTETS['+'] = SEXTETS['-'] = 62;
+		SEXTETS['/'] = SEXTETS['_'] = 63;
+	}
+
+	private final Format format;
+	private int n_threads = 1;
+	private int n_rejected = 0, n_duplicates = 0;
+
+	/**
+	 * @param format the encoding of the tokens
+	 */
+	public TokenLoader(Format format) {
+		if (format == null) {
+			throw new NullPointerException();
+		}
+		this.format = format;
+	}
+
+	/**
+	 * @param n_threads the number of threads that parse a file concurrently
+	 */
+	public TokenLoader setThreads(int n_threads) {
+		if (n_threads < 1) {
+			throw new IllegalArgumentException("Need at least one thread.");
+		}
+		this.n_threads = n_threads;
+		return this;
+	}
+
+	/**
+	 * @return the number of records rejected by the last load
+	 */
+	public int getRejected() { return n_rejected; }
+
+	/**
+	 * @return the number of repeated tokens dropped by the last load
+	 */
+	public int getDuplicates() { return n_duplicates; }
+
+	/**
+	 * Decodes tokens from a region of a buffer into an array. Text records
+	 * are lines, and a parser only takes the lines that start before its
+	 * stop index.
+	 */
+	private final class Parser {
+
+		TokenArray tokens = new TokenArray();
+		final byte[] token = new byte[TOKEN_LEN];
+		int n_rejected = 0;
+		boolean is_skipping = false;
+
+		/**
+		 * Parses the records from the position of the buffer, and leaves the
+		 * position at the first record not parsed.
+		 * @param stop the index at which no further record starts
+		 * @param is_last true if no data follows the limit of the buffer
+		 */
+		void parse(ByteBuffer buf, int stop, boolean is_last) {
+			if (format == Format.RAW) {
+				parseRaw(buf, stop, is_last);
+				return;
+			}
+			int pos = buf.position();
+			final int limit = buf.limit();
+			while (pos < stop) {
+				int end = pos;
+				while ((end < limit) && (buf.get(end) != '\n')) {
+					end ++;
+				}
+				if ((end == limit) && (! is_last)) {
+					if (end - pos > MAX_LINE) {
+						n_rejected += is_skipping ? 0 : 1;
+						is_skipping = true;
+						pos = end;
+					}
+					break;
+				}
+				if (is_skipping) {
+					is_skipping = false;
+				}
+				else {
+					parseLine(buf, pos, end);
+				}
+				pos = end + 1;
+			}
+			buf.position(Math.min(pos, limit));
+		}
+
+		private void parseRaw(ByteBuffer buf, int stop, boolean is_last) {
+			int pos = buf.position();
+			for (; (pos < stop) && (pos + TOKEN_LEN <= buf.limit());
+					pos += TOKEN_LEN) {
+				tokens.add(buf.getLong(pos), buf.getLong(pos + 8), buf.getLong(
+						pos + 16), buf.getLong(pos + 24));
+			}
+			if (is_last && (pos < stop) && (pos < buf.limit())) {
+				n_rejected ++;
+				pos = buf.limit();
+			}
+			buf.position(pos);
+		}
+
+		private void parseLine(ByteBuffer buf, int start, int end) {
+			while ((start < end) && isBlank(buf.get(start))) {
+				start ++;
+			}
+			while ((end > start) && isBlank(buf.get(end - 1))) {
+				end --;
+			}
+			if (start == end) {
+				return;
+			}
+			boolean is_valid = (format == Format.HEX) ? decodeHex(buf, start,
+					end) : decodeBase64(buf, start, end);
+			if (is_valid) {
+				ByteBuffer words = ByteBuffer.wrap(token);
+				tokens.add(words.getLong(), words.getLong(), words.getLong(),
+						words.getLong());
+			}
+			else {
+				n_rejected ++;
+			}
+		}
+
+		private boolean decodeHex(ByteBuffer buf, int start, int end) {
+			if (end - start != 2 * TOKEN_LEN) {
+				return false;
+			}
+			for (int k = 0; k < TOKEN_LEN; k ++) {
+				int hi = digit(DIGITS, buf.get(start + 2 * k)), lo = digit(
+						DIGITS, buf.get(start + 2 * k + 1));
+				if ((hi | lo) < 0) {
+					return false;
+				}
+				token[k] = (byte) ((hi << 4) | lo);
+			}
+			return true;
+		}
+
+		/**
+		 * Decodes standard or URL safe Base64 with optional padding. 32 bytes
+		 * take 43 characters, whose last two bits must be zero.
+		 */
+		private boolean decodeBase64(ByteBuffer buf, int start, int end) {
+			while ((end > start) && (buf.get(end - 1) == '=')) {
+				end --;
+			}
+			if (end - start != 43) {
+				return false;
+			}
+			int bits = 0, n_bits = 0, k = 0;
+			for (int i = start; i < end; i ++) {
+				int sextet = digit(SEXTETS, buf.get(i));
+				if (sextet < 0) {
+					return false;
+				}
+				bits = (bits << 6) | sextet;
+				n_bits += 6;
+				if (n_bits >= 8) {
+					n_bits -= 8;
+					token[k ++] = (byte) (bits >>> n_bits);
+				}
+			}
+			return (bits & ((1 << n_bits) - 1)) == 0;
+		}
+	}
+
+	private static boolean isBlank(byte b) {
+		return (b == ' ') || (b == '\t') || (b == '\r');
+	}
+
+	private static int digit(byte[] table, byte b) {
+		return (b < 0) ? -1 : table[b];
+	}
+
+	/**
+	 * Reads tokens from a stream until it ends. The stream is not closed.
+	 * @param in the stream of tokens
+	 * @return the distinct valid tokens in the order they were read
+	 */
+	public TokenArray load(InputStream in) throws IOException {
+		Parser parser = new Parser();
+		byte[] chunk = new byte[BUFFER_SIZE];
+		ByteBuffer buf = ByteBuffer.wrap(chunk);
+		int n_read;
+		while ((n_read = in.read(chunk, buf.position(), buf.remaining())) !=
+				-1) {
+			buf.position(buf.position() + n_read);
+			buf.flip();
+			parser.parse(buf, buf.limit(), false);
+			buf.compact();
+		}
+		buf.flip();
+		parser.parse(buf, buf.limit(), true);
+		List<Parser> parsers = new ArrayList<Parser>(1);
+		parsers.add(parser);
+		return merge(parsers, null);
+	}
+
+	/**
+	 * Reads all tokens in a file, splitting it into regions that are parsed
+	 * concurrently.
+	 * @param file the file of tokens
+	 * @return the distinct valid tokens in the order of the file
+	 */
+	public TokenArray load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final long size = channel.size();
+			int n_regions = (int) Math.max(n_threads, (size + MAX_REGION - 1) /
+					MAX_REGION);
+			long region = (size + n_regions - 1) / n_regions;
+			if (format == Format.RAW) {
+				region = (region + TOKEN_LEN - 1) / TOKEN_LEN * TOKEN_LEN;
+			}
+			List<Future<Parser>> regions = new ArrayList<Future<Parser>>();
+			ExecutorService pool = Executors.newFixedThreadPool(n_threads);
+			try {
+				for (long start = 0; start < size; start += region) {
+					final long from = start, to = Math.min(start + region, size);
+					regions.add(pool.submit(new Callable<Parser>() {
+						public Parser call() throws IOException {
+							return parseRegion(channel, from, to, size);
+						}
+					}));
+				}
+				List<Parser> parsers = new ArrayList<Parser>(regions.size());
+				for (Future<Parser> parser : regions) {
+					parsers.add(parser.get());
+				}
+				return merge(parsers, pool);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while loading tokens.", e);
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+			finally {
+				pool.shutdownNow();
+			}
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Parses the records that start in a region of the file. A text region
+	 * is mapped from the byte before it, to tell whether its first line
+	 * starts in an earlier region, and up to the longest line past its end,
+	 * to finish its last line.
+	 */
+	private Parser parseRegion(FileChannel channel, long from, long to,
+			long size) throws IOException {
+		Parser parser = new Parser();
+		long map_from = from, map_to = to;
+		if (format != Format.RAW) {
+			map_from = Math.max(from - 1, 0);
+			map_to = Math.min(to + MAX_LINE, size);
+		}
+		ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, map_from,
+				map_to - map_from);
+		int stop = (int) (to - map_from);
+		if ((from > 0) && (format != Format.RAW)) {
+			int pos = 0;
+			while ((pos < buf.limit()) && (buf.get(pos) != '\n')) {
+				pos ++;
+			}
+			buf.position(Math.min(pos + 1, buf.limit()));
+		}
+		parser.parse(buf, stop, true);
+		return parser;
+	}
+
+	/**
+	 * Runs tasks on a pool and waits for all of them, or runs them on the
+	 * calling thread if there is no pool.
+	 */
+	private static void runAll(ExecutorService pool, List<Runnable> tasks)
+			throws IOException {
+		if (pool == null) {
+			for (Runnable task : tasks) {
+				task.run();
+			}
+			return;
+		}
+		List<Future<?>> done = new ArrayList<Future<?>>(tasks.size());
+		for (Runnable task : tasks) {
+			done.add(pool.submit(task));
+		}
+		try {
+			for (Future<?> task : done) {
+				task.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading tokens.", e);
+		}
+		catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private static byte partition(TokenArray tokens, int k, int n_parts) {
+		long h = TokenSet.hash(tokens.word(k, 0), tokens.word(k, 1), tokens
+				.word(k, 2), tokens.word(k, 3));
+		return (byte) ((h >>> 33) % n_parts);
+	}
+
+	/**
+	 * Flags the tokens of a partition that repeat an earlier token of the
+	 * partition, which holds all repeats of its tokens.
+	 */
+	private static void dedup(List<Parser> parsers, byte[] flags, byte part,
+			int expected) {
+		TokenSet seen = new TokenSet(expected);
+		int i = 0;
+		for (Parser parser : parsers) {
+			TokenArray tokens = parser.tokens;
+			for (int k = 0; k < tokens.size(); k ++, i ++) {
+				if ((flags[i] == part) && (! seen.add(tokens.word(k, 0), tokens
+						.word(k, 1), tokens.word(k, 2), tokens.word(k, 3)))) {
+					flags[i] = DUPLICATE;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Concatenates the tokens of all parsers in order, dropping repeated
+	 * tokens. Tokens are split into partitions by hash, so that all repeats
+	 * of a token fall into the same partition, and each partition is
+	 * deduplicated by a task with a set of its own. A byte per token records
+	 * its partition, or that it is a repeat. The output is allocated at its
+	 * final size once the sets are dropped, and the tokens of each parser
+	 * are dropped once they were copied.
+	 * @param pool the pool to deduplicate on, or null to use a single
+	 * partition on the calling thread
+	 */
+	private TokenArray merge(final List<Parser> parsers, ExecutorService pool)
+			throws IOException {
+		long sum = 0;
+		n_rejected = 0;
+		for (Parser parser : parsers) {
+			sum += parser.tokens.size();
+			n_rejected += parser.n_rejected;
+		}
+		if (sum > TokenArray.MAX_CAPACITY) {
+			throw new IOException("Too many tokens.");
+		}
+		final int total = (int) sum;
+		final int n_parts = (pool == null) ? 1 : Math.min(n_threads,
+				MAX_PARTS);
+		final byte[] flags = new byte[total];
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		if (n_parts > 1) {
+			int offset = 0;
+			for (final Parser parser : parsers) {
+				final int from = offset;
+				offset += parser.tokens.size();
+				tasks.add(new Runnable() {
+					public void run() {
+						TokenArray tokens = parser.tokens;
+						for (int k = 0; k < tokens.size(); k ++) {
+							flags[from + k] = partition(tokens, k, n_parts);
+						}
+					}
+				});
+			}
+			runAll(pool, tasks);
+			tasks.clear();
+		}
+		for (int p = 0; p < n_parts; p ++) {
+			final byte part = (byte) p;
+			tasks.add(new Runnable() {
+				public void run() {
+					dedup(parsers, flags, part, total / n_parts + 1);
+				}
+			});
+		}
+		runAll(pool, tasks);
+		int n_distinct = 0;
+		for (byte flag : flags) {
+			if (flag != DUPLICATE) {
+				n_distinct ++;
+			}
+		}
+		TokenArray merged = new TokenArray(n_distinct);
+		int i = 0;
+		for (Parser parser : parsers) {
+			TokenArray tokens = parser.tokens;
+			parser.tokens = null;
+			for (int k = 0; k < tokens.size(); k ++) {
+				if (flags[i ++] != DUPLICATE) {
+					merged.add(tokens.word(k, 0), tokens.word(k, 1), tokens
+							.word(k, 2), tokens.word(k, 3));
+				}
+			}
+		}
+		n_duplicates = total - n_distinct;
+		return merged;
+	}
+}
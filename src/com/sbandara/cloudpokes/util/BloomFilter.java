@@ -0,0 +1,106 @@
+package com.sbandara.cloudpokes.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over 32-byte device tokens, which answers membership
+ * queries with no false negatives and a configurable rate of false
+ * positives. Bits are set atomically, so that tokens can be added and looked
+ * up concurrently without locking.
+ */
+public final class BloomFilter {
+
+	private final AtomicLongArray bits;
+	private final long n_bits;
+	private final int n_hash;
+
+	/**
+	 * @param expected the number of tokens the filter is sized for
+	 * @param fpp the desired rate of false positives at that number of tokens
+	 */
+	public BloomFilter(int expected, double fpp) {
+		if ((expected < 1) || (fpp <= 0) || (fpp >= 1)) {
+			throw new IllegalArgumentException("Bad filter settings.");
+		}
+		double ln2 = Math.log(2);
+		long m = (long) Math.ceil(-expected * Math.log(fpp) / (ln2 * ln2));
+		bits = new AtomicLongArray((int) ((m + 63) / 64));
+		n_bits = 64L * bits.length();
+		n_hash = Math.max(1, (int) Math.round(ln2 * n_bits / expected));
+	}
+
+	private static long mix(long h) {
+		h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+		h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+
+	/**
+	 * Visits the bit indexes of a token by double hashing, and either sets
+	 * or tests them.
+	 */
+	private boolean apply(long w0, long w1, long w2, long w3,
+			boolean is_add) {
+		long h1 = mix(w0 ^ w2), h2 = mix(w1 ^ w3) | 1;
+		for (int k = 0; k < n_hash; k ++) {
+			long idx = ((h1 + k * h2) & Long.MAX_VALUE) % n_bits;
+			int word = (int) (idx >>> 6);
+			long mask = 1L << idx;
+			if (is_add) {
+				long prev;
+				do {
+					prev = bits.get(word);
+				}
+				while (((prev & mask) == 0) && (! bits.compareAndSet(word,
+						prev, prev | mask)));
+			}
+			else if ((bits.get(word) & mask) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param token an array holding the token
+	 * @param off the offset of the token in the array
+	 */
+	public void add(byte[] token, int off) {
+		ByteBuffer buf = ByteBuffer.wrap(token, off, TokenSet.TOKEN_LEN);
+		add(buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong());
+	}
+
+	/**
+	 * Adds a token given as four big endian longs.
+	 */
+	public void add(long w0, long w1, long w2, long w3) {
+		apply(w0, w1, w2, w3, true);
+	}
+
+	/**
+	 * @param token an array holding the token
+	 * @param off the offset of the token in the array
+	 * @return false if the token was certainly never added
+	 */
+	public boolean mightContain(byte[] token, int off) {
+		ByteBuffer buf = ByteBuffer.wrap(token, off, TokenSet.TOKEN_LEN);
+		return mightContain(buf.getLong(), buf.getLong(), buf.getLong(), buf
+				.getLong());
+	}
+
+	/**
+	 * Looks up a token given as four big endian longs.
+	 * @return false if the token was certainly never added
+	 */
+	public boolean mightContain(long w0, long w1, long w2, long w3) {
+		return apply(w0, w1, w2, w3, false);
+	}
+
+	/**
+	 * @return the size of the bit array in bytes
+	 */
+	public long getSizeInBytes() {
+		return n_bits / 8;
+	}
+}
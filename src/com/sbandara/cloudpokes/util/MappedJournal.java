@@ -0,0 +1,318 @@
+package com.sbandara.cloudpokes.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An append-only journal of records, each tagged with an integer identifier,
+ * which is kept in a directory of memory-mapped segment files. Records are
+ * read back in place, as views of the mapped segments, so that replaying the
+ * journal does not deserialize anything.
+ * <p>
+ * Each record is laid out as its length, its identifier, its content, and its
+ * length once more, which allows the journal to be searched backwards. The
+ * leading length is written last, so a record that was torn by a crash is
+ * ignored when the journal is reopened. Positions are opaque longs, which
+ * compare in the order records were appended.
+ * <p>
+ * Besides the records, the journal keeps a mark that tells how far records
+ * were consumed. Segments entirely before the mark are deleted once there are
+ * more than the given number of segments.
+ */
+public final class MappedJournal implements Closeable {
+
+	private final static int HEAD_LEN = 8, TAIL_LEN = 4;
+	private final static String SUFFIX = ".journal",
+			MARK_FILE = "consumed.mark";
+
+	/**
+	 * Receives records that are replayed from the journal.
+	 */
+	public interface Visitor {
+		/**
+		 * @param id the identifier of the record
+		 * @param record a view of the record content, which is only valid for
+		 * the duration of the call
+		 * @throws IOException to stop the replay
+		 */
+		void visit(int id, ByteBuffer record) throws IOException;
+	}
+
+	private final static class Segment {
+		final MappedByteBuffer buf;
+		int end = 0;
+
+		Segment(MappedByteBuffer buf) {
+			this.buf = buf;
+		}
+	}
+
+	private final File dir;
+	private final int segment_size, max_segments;
+	private final TreeMap<Integer, Segment> segments =
+			new TreeMap<Integer, Segment>();
+	private final MappedByteBuffer mark;
+	private int head_no, last_id = 0;
+	private Segment head;
+
+	/**
+	 * Opens the journal in the given directory, or creates an empty one.
+	 * @param dir the directory that holds the segment files
+	 * @param segment_size the size of each segment file in bytes
+	 * @param max_segments the number of segments beyond which consumed
+	 * segments are deleted
+	 * @throws IOException if the segment files could not be mapped
+	 */
+	public MappedJournal(File dir, int segment_size, int max_segments)
+			throws IOException {
+		if ((segment_size <= HEAD_LEN + TAIL_LEN) || (max_segments < 1)) {
+			throw new IllegalArgumentException("Bad journal settings.");
+		}
+		if ((! dir.isDirectory()) && (! dir.mkdirs())) {
+			throw new IOException("Failed to create " + dir);
+		}
+		this.dir = dir;
+		this.segment_size = segment_size;
+		this.max_segments = max_segments;
+		File[] files = dir.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.getName().endsWith(SUFFIX);
+			}
+		});
+		for (File file : files) {
+			String name = file.getName();
+			try {
+				int no = Integer.parseInt(name.substring(0, name.length() -
+						SUFFIX.length()));
+				segments.put(no, new Segment(map(file, (int) file.length())));
+			}
+			catch (NumberFormatException e) {
+				continue;
+			}
+		}
+		for (Segment segment : segments.values()) {
+			recover(segment);
+		}
+		if (segments.isEmpty()) {
+			addSegment(0);
+		}
+		else {
+			head_no = segments.lastKey();
+			head = segments.get(head_no);
+		}
+		mark = map(new File(dir, MARK_FILE), 8);
+	}
+
+	private static MappedByteBuffer map(File file, int size)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					size);
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private static long position(int no, int offset) {
+		return ((long) no << 32) | offset;
+	}
+
+	private static int segmentOf(long position) {
+		return (int) (position >>> 32);
+	}
+
+	private static int offsetOf(long position) {
+		return (int) position;
+	}
+
+	/**
+	 * Scans a segment for the end of its last complete record.
+	 */
+	private void recover(Segment segment) {
+		final MappedByteBuffer buf = segment.buf;
+		int pos = 0;
+		while (pos + HEAD_LEN + TAIL_LEN <= buf.capacity()) {
+			int len = buf.getInt(pos);
+			if ((len <= 0) || (len > buf.capacity() - pos - HEAD_LEN -
+					TAIL_LEN) || (buf.getInt(pos + HEAD_LEN + len) != len)) {
+				break;
+			}
+			last_id = buf.getInt(pos + 4);
+			pos += HEAD_LEN + len + TAIL_LEN;
+		}
+		segment.end = pos;
+	}
+
+	private void addSegment(int no) throws IOException {
+		head = new Segment(map(new File(dir, String.format("%08d", no) +
+				SUFFIX), segment_size));
+		head_no = no;
+		segments.put(no, head);
+	}
+
+	/**
+	 * Deletes the oldest segments that were consumed, as long as there are
+	 * more than the maximum number of segments.
+	 */
+	private void trim() {
+		final int consumed = segmentOf(getConsumed());
+		while (segments.size() > max_segments) {
+			int no = segments.firstKey();
+			if (no >= consumed) {
+				break;
+			}
+			segments.remove(no);
+			new File(dir, String.format("%08d", no) + SUFFIX).delete();
+		}
+	}
+
+	/**
+	 * Appends a record, starting a new segment if the current one is full.
+	 * A full segment is forced to the storage device before the next one is
+	 * started.
+	 * @param id the identifier of the record
+	 * @param src the record content, from its position to its limit
+	 * @return the position right after the record
+	 * @throws IOException if a new segment could not be mapped
+	 */
+	public synchronized long append(int id, ByteBuffer src)
+			throws IOException {
+		final int len = src.remaining(), total_len = HEAD_LEN + len +
+				TAIL_LEN;
+		if ((len == 0) || (total_len > segment_size)) {
+			throw new IllegalArgumentException("Bad record length.");
+		}
+		if (head.end + total_len > head.buf.capacity()) {
+			head.buf.force();
+			addSegment(head_no + 1);
+			trim();
+		}
+		final int pos = head.end;
+		ByteBuffer dst = head.buf.duplicate();
+		dst.position(pos + HEAD_LEN);
+		dst.put(src);
+		head.buf.putInt(pos + 4, id).putInt(pos + HEAD_LEN + len, len)
+				.putInt(pos, len);
+		head.end = pos + total_len;
+		last_id = id;
+		return position(head_no, head.end);
+	}
+
+	/**
+	 * Searches the journal backwards for the most recent record with the
+	 * given identifier.
+	 * @param id the identifier to search for
+	 * @return the position right after the record, or -1 if not found
+	 */
+	public synchronized long find(int id) {
+		for (Map.Entry<Integer, Segment> entry : segments.descendingMap()
+				.entrySet()) {
+			ByteBuffer buf = entry.getValue().buf;
+			int pos = entry.getValue().end;
+			while (pos > 0) {
+				int len = buf.getInt(pos - TAIL_LEN), start = pos - TAIL_LEN -
+						len - HEAD_LEN;
+				if (buf.getInt(start + 4) == id) {
+					return position(entry.getKey(), pos);
+				}
+				pos = start;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Passes records to a visitor in the order they were appended. Records
+	 * in segments that were deleted are skipped.
+	 * @param from the position of the first record to replay
+	 * @param to the position after the last record to replay
+	 * @param visitor the visitor to pass the records to
+	 * @return the position after the last record visited
+	 * @throws IOException if the visitor failed
+	 */
+	public long replay(long from, long to, Visitor visitor)
+			throws IOException {
+		ArrayList<Map.Entry<Integer, Segment>> range;
+		synchronized (this) {
+			range = new ArrayList<Map.Entry<Integer, Segment>>(segments
+					.subMap(segmentOf(from), true, segmentOf(to), true)
+					.entrySet());
+		}
+		long done = from;
+		for (Map.Entry<Integer, Segment> entry : range) {
+			final int no = entry.getKey();
+			final Segment segment = entry.getValue();
+			int pos = (no == segmentOf(from)) ? offsetOf(from) : 0, end;
+			synchronized (this) {
+				end = (no == segmentOf(to)) ? offsetOf(to) : segment.end;
+			}
+			ByteBuffer view = segment.buf.duplicate();
+			while (pos < end) {
+				int len = view.getInt(pos), id = view.getInt(pos + 4);
+				view.limit(pos + HEAD_LEN + len).position(pos + HEAD_LEN);
+				visitor.visit(id, view.slice());
+				view.clear();
+				pos += HEAD_LEN + len + TAIL_LEN;
+				done = position(no, pos);
+			}
+		}
+		return done;
+	}
+
+	/**
+	 * @return the position after the last record
+	 */
+	public synchronized long getEnd() {
+		return position(head_no, head.end);
+	}
+
+	/**
+	 * @return the identifier of the last record, or zero if the journal is
+	 * empty
+	 */
+	public synchronized int getLastId() {
+		return last_id;
+	}
+
+	/**
+	 * @return the position up to which records were consumed
+	 */
+	public long getConsumed() {
+		return mark.getLong(0);
+	}
+
+	/**
+	 * Sets the position up to which records were consumed. The mark may move
+	 * backwards, for example when records are to be consumed once more. Must
+	 * only be called by a single thread.
+	 * @param position a position returned by this journal
+	 */
+	public void setConsumed(long position) {
+		mark.putLong(0, position);
+	}
+
+	/**
+	 * Forces all changes to the journal to the storage device.
+	 */
+	public synchronized void force() {
+		for (Segment segment : segments.values()) {
+			segment.buf.force();
+		}
+		mark.force();
+	}
+
+	public void close() {
+		force();
+	}
+}
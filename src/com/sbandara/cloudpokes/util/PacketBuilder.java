@@ -1,6 +1,9 @@
 package com.sbandara.cloudpokes.util;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.nio.ByteBuffer;
 
 /**
@@ -9,28 +12,74 @@ import java.nio.ByteBuffer;
  * of allvpacket items to follow. Each item is made up of a byte indicating the
  * type of item, a two-byte integer indicating the length of the item content,
  * andvthe item itself. All data is written big endian.
+ * <p>
+ * A builder may encode packets into a buffer supplied by the caller, which
+ * can be heap or direct. Such a builder is meant to be reused: {@code reset}
+ * starts over at the beginning of the buffer, and {@code begin} appends
+ * another packet after the previous one.
  */
 public class PacketBuilder {
-	
+
+	private final static byte CMD_SEND = 2;
+	private final static int HEADER_LEN = 5;
+
 	private final ByteBuffer buf;
+	private int start = 0, item_start = -1;
+	private boolean is_finished = false;
+	private Utf8BufferWriter item_writer = null;
 	private byte[] packet = null;
-	
+
 	/**
 	 * Constructor for building APNS version 2-style request packets.
 	 * @param capacity the maximum possible length of the packet in bytes
 	 */
 	public PacketBuilder(int capacity) {
-		buf = ByteBuffer.allocate(capacity);
-		buf.put((byte) 2).mark();
-		buf.putInt(0);
+		this(ByteBuffer.allocate(capacity));
+	}
+
+	/**
+	 * Constructor for building packets into a caller-supplied buffer. The
+	 * first packet begins at the current position of the buffer.
+	 * @param buf the buffer to write packets to
+	 */
+	public PacketBuilder(ByteBuffer buf) {
+		this.buf = buf;
+		begin();
+	}
+
+	/**
+	 * Begins a new packet at the current position of the buffer, that is,
+	 * right after the last packet that was finished.
+	 * @return this PacketBuilder instance for fluent use
+	 */
+	public PacketBuilder begin() {
+		start = buf.position();
+		item_start = -1;
+		buf.put(CMD_SEND).putInt(0);
+		is_finished = false;
+		packet = null;
+		return this;
+	}
+
+	/**
+	 * Discards all packets in the buffer and begins a new packet at its
+	 * beginning.
+	 * @return this PacketBuilder instance for fluent use
+	 */
+	public PacketBuilder reset() {
+		buf.clear();
+		return begin();
 	}
-	
+
 	private void ensureIsBuilding() {
-		if (packet != null) {
+		if (is_finished) {
 			throw new IllegalStateException("Packet was already built.");
 		}
+		if (item_start != -1) {
+			throw new IllegalStateException("An item is still open.");
+		}
 	}
-	
+
 	/**
 	 * Appends an item that consists of an array of bytes to the packet.
 	 * @param id an identifier for the type of item
@@ -43,6 +92,22 @@ public class PacketBuilder {
 		return this;
 	}
 
+	/**
+	 * Appends an item that consists of an array of longs, written big endian,
+	 * to the packet.
+	 * @param id an identifier for the type of item
+	 * @param item the array-of-longs content of the item
+	 * @return this PacketBuilder instance for fluent use
+	 */
+	public PacketBuilder putLongArrayItem(byte id, long[] item) {
+		ensureIsBuilding();
+		buf.put(id).putShort((short) (8 * item.length));
+		for (long word : item) {
+			buf.putLong(word);
+		}
+		return this;
+	}
+
 	/**
 	 * Appends a String item to the packet.
 	 * @param id an identifier for the type of item
@@ -81,7 +146,109 @@ public class PacketBuilder {
 		buf.put(id).putShort((short) 1).put(item);
 		return this;
 	}
-	
+
+	/**
+	 * Opens an item whose content is streamed as UTF-8 text. Two bytes are
+	 * reserved for the length of the item, which is written by
+	 * {@code endItem}. No other item may be appended until then.
+	 * @param id an identifier for the type of item
+	 * @return a writer that encodes its input into the packet buffer
+	 */
+	public Writer beginItem(byte id) {
+		ensureIsBuilding();
+		buf.put(id);
+		item_start = buf.position();
+		buf.putShort((short) 0);
+		if (item_writer == null) {
+			item_writer = new Utf8BufferWriter(buf);
+		}
+		return item_writer.reset(buf);
+	}
+
+	/**
+	 * Appends raw bytes, such as pre-encoded text, to the item opened by
+	 * {@code beginItem}.
+	 * @param bytes the bytes to append
+	 * @return this PacketBuilder instance for fluent use
+	 */
+	public PacketBuilder appendToItem(byte[] bytes) {
+		if (item_start == -1) {
+			throw new IllegalStateException("No item is open.");
+		}
+		item_writer.flush();
+		buf.put(bytes);
+		return this;
+	}
+
+	/**
+	 * Closes the item opened by {@code beginItem} and back-patches its
+	 * length.
+	 * @return this PacketBuilder instance for fluent use
+	 */
+	public PacketBuilder endItem() {
+		if (item_start == -1) {
+			throw new IllegalStateException("No item is open.");
+		}
+		item_writer.flush();
+		final int item_len = buf.position() - item_start - 2;
+		if (item_len > 0xffff) {
+			throw new IllegalStateException("Item is too long.");
+		}
+		buf.putShort(item_start, (short) item_len);
+		item_start = -1;
+		return this;
+	}
+
+	/**
+	 * Completes the current packet by writing its length to the header.
+	 * Attempts to modify the packet afterwards will raise an
+	 * {@code IllegalStateException}, until the next packet is begun.
+	 * @return the length of the packet in bytes
+	 */
+	public int finish() {
+		if (! is_finished) {
+			if (item_start != -1) {
+				endItem();
+			}
+			buf.putInt(start + 1, buf.position() - start - HEADER_LEN);
+			is_finished = true;
+		}
+		return buf.position() - start;
+	}
+
+	/**
+	 * @return the buffer that packets are written to
+	 */
+	public ByteBuffer getBuffer() { return buf; }
+
+	/**
+	 * Completes the current packet and writes it to an output stream. Packets
+	 * in heap buffers are written without copying.
+	 * @param out the stream to write the packet to
+	 * @throws IOException if writing to the stream failed
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		final int total_len = finish();
+		if (buf.hasArray()) {
+			out.write(buf.array(), buf.arrayOffset() + start, total_len);
+		}
+		else {
+			out.write(build());
+		}
+	}
+
+	/**
+	 * Completes the current packet and returns a view of it, which shares the
+	 * buffer of this builder and is valid until the next packet is begun.
+	 * @return a buffer positioned at the start of the packet
+	 */
+	public ByteBuffer view() {
+		final int total_len = finish();
+		ByteBuffer view = buf.duplicate();
+		view.limit(start + total_len).position(start);
+		return view;
+	}
+
 	/**
 	 * Constructs and returns the packet as an array of bytes. Attempts to
 	 * modify the packet through this builder instance after build was called
@@ -91,12 +258,9 @@ public class PacketBuilder {
 	 */
 	public byte[] build() throws IllegalStateException {
 		if (packet == null) {
-			final int total_len = buf.position();
-			buf.reset();
-			buf.putInt(total_len - 5);
-			buf.rewind();
-			packet = new byte[total_len];
-			buf.get(packet, 0, total_len);
+			ByteBuffer view = view();
+			packet = new byte[view.remaining()];
+			view.get(packet);
 		}
 		return packet;
 	}
@@ -0,0 +1,100 @@
+package com.sbandara.cloudpokes.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a stream of sends to a rate, allowing bursts up to a fixed number of
+ * permits. Permits are reserved ahead, so that callers who find the bucket
+ * empty are served in the order they arrived.
+ * <p>
+ * {@code slowDown} halves the current rate, down to a sixteenth of the
+ * configured rate. The rate then recovers linearly, reaching the configured
+ * rate again after the recovery time.
+ */
+public final class TokenBucket {
+
+	private final static int MIN_RATE_DIVISOR = 16;
+
+	private final double max_rate, burst, recovery_secs;
+	private double rate, permits;
+	private long refilled = System.nanoTime();
+
+	/**
+	 * @param rate the number of permits per second
+	 * @param burst the number of permits that can be taken at once
+	 * @param recovery_millis the time to recover from the lowest rate
+	 */
+	public TokenBucket(double rate, int burst, int recovery_millis) {
+		if ((rate <= 0) || (burst < 1) || (recovery_millis < 0)) {
+			throw new IllegalArgumentException("Bad rate limit settings.");
+		}
+		max_rate = this.rate = rate;
+		this.burst = permits = burst;
+		recovery_secs = recovery_millis / 1000.0;
+	}
+
+	private void refill(long now) {
+		double secs = (now - refilled) / 1e9;
+		refilled = now;
+		permits = Math.min(burst, permits + secs * rate);
+		if (rate < max_rate) {
+			rate = (recovery_secs == 0) ? max_rate : Math.min(max_rate, rate +
+					secs * max_rate / recovery_secs);
+		}
+	}
+
+	/**
+	 * Takes permits, and waits until they are due if the bucket holds fewer.
+	 * Returns early if the calling thread is interrupted.
+	 * @param n the number of permits, which may exceed the burst size
+	 */
+	public void acquire(int n) {
+		long deadline;
+		synchronized (this) {
+			long now = System.nanoTime();
+			refill(now);
+			permits -= n;
+			if (permits >= 0) {
+				return;
+			}
+			deadline = now + (long) (-permits / rate * 1e9);
+		}
+		long remaining;
+		while (((remaining = deadline - System.nanoTime()) > 0) && (! Thread
+				.currentThread().isInterrupted())) {
+			LockSupport.parkNanos(this, remaining);
+		}
+	}
+
+	/**
+	 * Returns permits that were taken but not used, up to the burst size.
+	 * @param n the number of permits to return
+	 */
+	public synchronized void release(int n) {
+		refill(System.nanoTime());
+		permits = Math.min(burst, permits + n);
+	}
+
+	/**
+	 * Halves the rate and drops any saved up burst, after the receiver
+	 * signaled that it is overloaded.
+	 */
+	public synchronized void slowDown() {
+		refill(System.nanoTime());
+		rate = Math.max(rate / 2, max_rate / MIN_RATE_DIVISOR);
+		permits = Math.min(permits, 0);
+	}
+
+	/**
+	 * @return the current rate in permits per second
+	 */
+	public synchronized double getRate() {
+		refill(System.nanoTime());
+		return rate;
+	}
+
+	/**
+	 * @return the number of permits that can be taken at once
+	 */
+	public int getBurst() { return (int) burst; }
+}
@@ -0,0 +1,195 @@
+package com.sbandara.cloudpokes.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A compact set of 32-byte device tokens, which keeps a 64-bit fingerprint
+ * per token instead of the token. Fingerprints are found by open addressing
+ * with linear probing in a single array of longs, which is sized to the
+ * expected number of tokens rather than to a power of two. A slot takes 8
+ * bytes, so the set takes about 11 bytes per token at the expected size,
+ * and at most twice that after it grew.
+ * <p>
+ * Two tokens are confused only if their fingerprints collide, which happens
+ * for a given lookup with a probability of about one in 2^64 per token in
+ * the set, or less than one in a trillion for ten million tokens.
+ * <p>
+ * Lookups are optimistic and do not block while no token is being added.
+ */
+public final class TokenFingerprintSet {
+
+	private final static double MAX_LOAD = 0.75;
+	private final static long EMPTY = 0, ZERO_FINGERPRINT = 1;
+
+	private final StampedLock lock = new StampedLock();
+	private long[] table;
+	private int size = 0, max_size;
+
+	/**
+	 * @param expected the number of tokens the set should hold before it has
+	 * to grow
+	 */
+	public TokenFingerprintSet(int expected) {
+		allocate(Math.max((int) Math.min(expected / MAX_LOAD + 1, Integer
+				.MAX_VALUE - 8), 8));
+	}
+
+	private void allocate(int capacity) {
+		table = new long[capacity];
+		max_size = (int) (capacity * MAX_LOAD);
+	}
+
+	private static long word(byte[] token, int off, int k) {
+		return ByteBuffer.wrap(token, off + 8 * k, 8).getLong();
+	}
+
+	private static long mix(long h) {
+		h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+		h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+
+	/**
+	 * Hashes the words of a token in a chain, so that every bit of the token
+	 * affects every bit of the fingerprint. Zero marks an empty slot, so it
+	 * is replaced by another fingerprint.
+	 */
+	private static long fingerprint(long w0, long w1, long w2, long w3) {
+		long h = mix(mix(mix(mix(w0) ^ w1) ^ w2) ^ w3);
+		return (h == EMPTY) ? ZERO_FINGERPRINT : h;
+	}
+
+	/**
+	 * @return the index of the slot holding the fingerprint, or of the empty
+	 * slot where it belongs
+	 */
+	private static int probe(long[] table, long fp) {
+		int slot = (int) (((fp >>> 32) * table.length) >>> 32);
+		for (;;) {
+			long t = table[slot];
+			if ((t == fp) || (t == EMPTY)) {
+				return slot;
+			}
+			if (++ slot == table.length) {
+				slot = 0;
+			}
+		}
+	}
+
+	/**
+	 * @param token an array holding the token
+	 * @param off the offset of the token in the array
+	 * @return true if the token was not in the set before
+	 */
+	public boolean add(byte[] token, int off) {
+		return add(word(token, off, 0), word(token, off, 1), word(token, off,
+				2), word(token, off, 3));
+	}
+
+	public boolean add(byte[] token) {
+		return add(token, 0);
+	}
+
+	/**
+	 * @param w0 the first eight bytes of the token, big endian
+	 * @param w1 the next eight bytes of the token
+	 * @param w2 the next eight bytes of the token
+	 * @param w3 the last eight bytes of the token
+	 * @return true if the token was not in the set before
+	 */
+	public boolean add(long w0, long w1, long w2, long w3) {
+		final long fp = fingerprint(w0, w1, w2, w3);
+		long stamp = lock.writeLock();
+		try {
+			int slot = probe(table, fp);
+			if (table[slot] == fp) {
+				return false;
+			}
+			table[slot] = fp;
+			if (++ size > max_size) {
+				grow();
+			}
+			return true;
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	private void grow() {
+		long[] old = table;
+		allocate((int) Math.min(2L * old.length, Integer.MAX_VALUE - 8));
+		for (long fp : old) {
+			if (fp != EMPTY) {
+				table[probe(table, fp)] = fp;
+			}
+		}
+	}
+
+	/**
+	 * @param token an array holding the token
+	 * @param off the offset of the token in the array
+	 * @return true if the token is in the set
+	 */
+	public boolean contains(byte[] token, int off) {
+		return contains(word(token, off, 0), word(token, off, 1), word(token,
+				off, 2), word(token, off, 3));
+	}
+
+	public boolean contains(byte[] token) {
+		return contains(token, 0);
+	}
+
+	/**
+	 * @param w0 the first eight bytes of the token, big endian
+	 * @param w1 the next eight bytes of the token
+	 * @param w2 the next eight bytes of the token
+	 * @param w3 the last eight bytes of the token
+	 * @return true if the token is in the set
+	 */
+	public boolean contains(long w0, long w1, long w2, long w3) {
+		final long fp = fingerprint(w0, w1, w2, w3);
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			long[] view = table;
+			boolean is_found = view[probe(view, fp)] == fp;
+			if (lock.validate(stamp)) {
+				return is_found;
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return table[probe(table, fp)] == fp;
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return the number of tokens in the set
+	 */
+	public int size() {
+		long stamp = lock.readLock();
+		try {
+			return size;
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return the number of bytes taken by the table of fingerprints
+	 */
+	public long getTableBytes() {
+		long stamp = lock.readLock();
+		try {
+			return 8L * table.length;
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package com.sbandara.cloudpokes.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An exact set of 32-byte device tokens. Tokens are packed into a single
+ * array of longs, four per slot, and found by open addressing with linear
+ * probing, so that the set holds no object per token. An all-zero slot is
+ * empty; the all-zero token is tracked separately.
+ * <p>
+ * Lookups are optimistic and do not block while no token is being added.
+ */
+public final class TokenSet {
+
+	public final static int TOKEN_LEN = 32;
+
+	private final static int WORDS = TOKEN_LEN / 8;
+	private final static double MAX_LOAD = 0.75;
+
+	private final StampedLock lock = new StampedLock();
+	private long[] table;
+	private int size = 0, max_size;
+	private boolean has_zero = false;
+
+	/**
+	 * @param expected the number of tokens the set should hold before it has
+	 * to grow
+	 */
+	public TokenSet(int expected) {
+		int capacity = Integer.highestOneBit(Math.max((int) (expected /
+				MAX_LOAD), 8) - 1) << 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		table = new long[capacity * WORDS];
+		max_size = (int) (capacity * MAX_LOAD);
+	}
+
+	private static long word(byte[] token, int off, int k) {
+		return ByteBuffer.wrap(token, off + 8 * k, 8).getLong();
+	}
+
+	/**
+	 * Spreads the bits of a token over the slot index, and over the hash code
+	 * of a {@code DeviceToken}. Tokens are random in practice, but need not
+	 * be.
+	 */
+	public static long hash(long w0, long w1, long w2, long w3) {
+		long h = (w0 * 0x9e3779b97f4a7c15L) ^ (w1 * 0xc2b2ae3d27d4eb4fL) ^
+				(w2 * 0x165667b19e3779f9L) ^ (w3 * 0x27d4eb2f165667c5L);
+		return h ^ (h >>> 29);
+	}
+
+	/**
+	 * @return the index of the slot holding the token, or of the empty slot
+	 * where it belongs
+	 */
+	private static int probe(long[] table, long w0, long w1, long w2,
+			long w3) {
+		final int mask = table.length / WORDS - 1;
+		int slot = (int) hash(w0, w1, w2, w3) & mask;
+		for (;;) {
+			int i = slot * WORDS;
+			long t0 = table[i], t1 = table[i + 1], t2 = table[i + 2],
+					t3 = table[i + 3];
+			if (((t0 == w0) && (t1 == w1) && (t2 == w2) && (t3 == w3)) ||
+					((t0 | t1 | t2 | t3) == 0)) {
+				return i;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private static boolean isZero(long w0, long w1, long w2, long w3) {
+		return (w0 | w1 | w2 | w3) == 0;
+	}
+
+	/**
+	 * @param token an array holding the token
+	 * @param off the offset of the token in the array
+	 * @return true if the token was not in the set before
+	 */
+	public boolean add(byte[] token, int off) {
+		return add(word(token, off, 0), word(token, off, 1), word(token, off,
+				2), word(token, off, 3));
+	}
+
+	/**
+	 * @param w0 the first eight bytes of the token, big endian
+	 * @param w1 the next eight bytes of the token
+	 * @param w2 the next eight bytes of the token
+	 * @param w3 the last eight bytes of the token
+	 * @return true if the token was not in the set before
+	 */
+	public boolean add(long w0, long w1, long w2, long w3) {
+		long stamp = lock.writeLock();
+		try {
+			if (isZero(w0, w1, w2, w3)) {
+				boolean was_absent = ! has_zero;
+				has_zero = true;
+				return was_absent;
+			}
+			int i = probe(table, w0, w1, w2, w3);
+			if (! isZero(table[i], table[i + 1], table[i + 2], table[i + 3])) {
+				return false;
+			}
+			table[i] = w0;
+			table[i + 1] = w1;
+			table[i + 2] = w2;
+			table[i + 3] = w3;
+			if (++ size > max_size) {
+				grow();
+			}
+			return true;
+		}
+		finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public boolean add(byte[] token) {
+		return add(token, 0);
+	}
+
+	private void grow() {
+		long[] old = table;
+		allocate(2 * old.length / WORDS);
+		for (int i = 0; i < old.length; i += WORDS) {
+			if (! isZero(old[i], old[i + 1], old[i + 2], old[i + 3])) {
+				int j = probe(table, old[i], old[i + 1], old[i + 2],
+						old[i + 3]);
+				System.arraycopy(old, i, table, j, WORDS);
+			}
+		}
+	}
+
+	/**
+	 * @param token an array holding the token
+	 * @param off the offset of the token in the array
+	 * @return true if the token is in the set
+	 */
+	public boolean contains(byte[] token, int off) {
+		return contains(word(token, off, 0), word(token, off, 1), word(token,
+				off, 2), word(token, off, 3));
+	}
+
+	/**
+	 * @param w0 the first eight bytes of the token, big endian
+	 * @param w1 the next eight bytes of the token
+	 * @param w2 the next eight bytes of the token
+	 * @param w3 the last eight bytes of the token
+	 * @return true if the token is in the set
+	 */
+	public boolean contains(long w0, long w1, long w2, long w3) {
+		if (isZero(w0, w1, w2, w3)) {
+			long stamp = lock.readLock();
+			try {
+				return has_zero;
+			}
+			finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			long[] view = table;
+			boolean is_found = isPresent(view, w0, w1, w2, w3);
+			if (lock.validate(stamp)) {
+				return is_found;
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return isPresent(table, w0, w1, w2, w3);
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private static boolean isPresent(long[] table, long w0, long w1, long w2,
+			long w3) {
+		int i = probe(table, w0, w1, w2, w3);
+		return (table[i] == w0) && (table[i + 1] == w1) &&
+				(table[i + 2] == w2) && (table[i + 3] == w3);
+	}
+
+	public boolean contains(byte[] token) {
+		return contains(token, 0);
+	}
+
+	/**
+	 * @return the number of tokens in the set
+	 */
+	public int size() {
+		long stamp = lock.readLock();
+		try {
+			return has_zero ? size + 1 : size;
+		}
+		finally {
+			lock.unlockRead(stamp);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.sbandara.cloudpokes.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A writer that encodes characters as UTF-8 straight into a byte buffer,
+ * without an intermediate charset encoder or byte array. Unpaired surrogates
+ * are replaced by a question mark, like the JDK encoder does. Writing past the
+ * limit of the buffer raises a {@code BufferOverflowException}.
+ */
+public final class Utf8BufferWriter extends Writer {
+
+	private ByteBuffer buf;
+	private char high_surrogate = 0;
+
+	/**
+	 * @param buf the buffer to write to, starting at its current position
+	 */
+	public Utf8BufferWriter(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	/**
+	 * Points this writer at another buffer and drops any pending high
+	 * surrogate.
+	 * @param buf the buffer to write to, starting at its current position
+	 * @return this writer instance for fluent use
+	 */
+	public Utf8BufferWriter reset(ByteBuffer buf) {
+		this.buf = buf;
+		high_surrogate = 0;
+		return this;
+	}
+
+	private void put(int c) {
+		if (high_surrogate != 0) {
+			char high = high_surrogate;
+			high_surrogate = 0;
+			if (Character.isLowSurrogate((char) c)) {
+				int cp = Character.toCodePoint(high, (char) c);
+				ensureRemaining(4);
+				buf.put((byte) (0xf0 | (cp >> 18)))
+						.put((byte) (0x80 | ((cp >> 12) & 0x3f)))
+						.put((byte) (0x80 | ((cp >> 6) & 0x3f)))
+						.put((byte) (0x80 | (cp & 0x3f)));
+				return;
+			}
+			buf.put((byte) '?');
+		}
+		if (c < 0x80) {
+			buf.put((byte) c);
+		}
+		else if (c < 0x800) {
+			ensureRemaining(2);
+			buf.put((byte) (0xc0 | (c >> 6))).put((byte) (0x80 | (c & 0x3f)));
+		}
+		else if (Character.isHighSurrogate((char) c)) {
+			high_surrogate = (char) c;
+		}
+		else if (Character.isLowSurrogate((char) c)) {
+			buf.put((byte) '?');
+		}
+		else {
+			ensureRemaining(3);
+			buf.put((byte) (0xe0 | (c >> 12)))
+					.put((byte) (0x80 | ((c >> 6) & 0x3f)))
+					.put((byte) (0x80 | (c & 0x3f)));
+		}
+	}
+
+	private void ensureRemaining(int n) {
+		if (buf.remaining() < n) {
+			throw new BufferOverflowException();
+		}
+	}
+
+	@Override
+	public void write(int c) {
+		put(c & 0xffff);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		for (int end = off + len; off < end; off ++) {
+			put(cbuf[off]);
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		for (int end = off + len; off < end; off ++) {
+			put(str.charAt(off));
+		}
+	}
+
+	/**
+	 * Completes the output. A dangling high surrogate is written as a
+	 * question mark.
+	 */
+	@Override
+	public void flush() {
+		if (high_surrogate != 0) {
+			high_surrogate = 0;
+			buf.put((byte) '?');
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+}
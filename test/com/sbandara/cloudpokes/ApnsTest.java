@@ -2,17 +2,47 @@ package com.sbandara.cloudpokes;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.sbandara.cloudpokes.mockapns.*;
 import com.sbandara.cloudpokes.ApnsGateway.*;
+import com.sbandara.cloudpokes.util.MappedJournal;
 
 public class ApnsTest {
 	
-	private final static int MOCK_APNS_PORT = 2195;
+	private final static int MOCK_APNS_PORT = 2196, PIPELINED_PORT = 2197,
+			POOLED_PORT = 2198, NIO_PORT = 2199, BROADCAST_PORT = 2200,
+			FUTURE_PORT = 2201, JOURNAL_PORT = 2202, DEEP_REWIND_PORT = 2203,
+			FILTER_PORT = 2204, STANDBY_PORT = 2205,
+			PACED_PORT = 2206, LANES_PORT = 2207,
+			COALESCE_PORT = 2208, SHUTDOWN_PORT = 2209, RETRY_PORT = 2210,
+			TLS_PORT = 2211, BURST_PORT = 2212, QUIET_PORT = 2213,
+			ADOPT_PORT = 2214;
+	
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
 	
 	private class MockServerListener implements ApnsServerEventListener {
 		@Override
@@ -26,6 +56,19 @@ public class ApnsTest {
 	
 	private final MockServerListener mock_logger = new MockServerListener();
 	
+	private static ApnsConfig mockConfig(final int port) {
+		return new ApnsConfig() {
+			@Override
+			public String getCertPhrase() { return null; }
+			@Override
+			public InputStream getCertFile() throws IOException { return null; }
+			@Override
+			public String getHostname(Service service) { return "localhost"; }
+			@Override
+			public int getPort(Service service) { return port; }
+		};
+	}
+	
 	@Test
 	public void testMockServer() {
 		MockApnsServer mock = new MockApnsServer();
@@ -35,16 +78,7 @@ public class ApnsTest {
 		catch (IOException e) {
 			fail();
 		}
-		ApnsPushSender.configure(new ApnsConfig() {
-			@Override
-			public String getCertPhrase() { return null; }
-			@Override
-			public InputStream getCertFile() throws IOException { return null; }
-			@Override
-			public String getHostname(Service service) { return "localhost"; }
-			@Override
-			public int getPort(Service service) { return MOCK_APNS_PORT; }
-		});
+		ApnsPushSender.configure(mockConfig(MOCK_APNS_PORT));
 		Notification.withToken(new DeviceToken(new byte[32])).setMessage(
 				"Hello World!").send();
 		try {
@@ -55,4 +89,580 @@ public class ApnsTest {
 		}
 		mock.stop();
 	}
+	
+	private class AcceptedCounter implements ApnsServerEventListener {
+		final HashSet<Integer> accepted = new HashSet<Integer>();
+		final HashSet<String> payloads = new HashSet<String>();
+		@Override
+		public synchronized void didAcceptPacket(ApnsPacket packet) {
+			accepted.add(packet.getNotificationId());
+			payloads.add(packet.getPayload());
+			notifyAll();
+		}
+		@Override
+		public void didRejectPacket(ApnsPacket packet, byte error) {
+		}
+		synchronized void awaitCount(int count) throws InterruptedException {
+			while (accepted.size() < count) {
+				wait();
+			}
+		}
+	}
+	
+	private void sendWithBadToken(int port, DispatchOptions options)
+			throws IOException, InterruptedException {
+		sendWithBadToken(port, mockConfig(port), null, options);
+	}
+	
+	private void sendWithBadToken(int port, ApnsConfig config,
+			SSLContext context, DispatchOptions options) throws IOException,
+			InterruptedException {
+		final int COUNT = 40, BAD_IDX = 7;
+		ApnsToken[] tokens = ApnsToken.uniqueRandom(COUNT);
+		AcceptedCounter counter = new AcceptedCounter();
+		MockApnsServer mock = new MockApnsServer();
+		mock.setEventListener(counter).defineBadToken(tokens[BAD_IDX]
+				.getBytes());
+		if (context == null) {
+			mock.start(port);
+		}
+		else {
+			mock.start(port, context);
+		}
+		ApnsPushSender.configure(config, options);
+		for (int k = 0; k < COUNT; k ++) {
+			Notification.withToken(DeviceToken.apnsToken(tokens[k].getBytes()))
+					.setMessage("Message " + k).send();
+		}
+		counter.awaitCount(COUNT - 1);
+		assertEquals(MockApnsServer.BAD_TOKEN, ApnsPushSender.getInstance()
+				.getErrorCode());
+		mock.stop();
+		assertEquals(COUNT - 1, counter.accepted.size());
+	}
+	
+	@Test(timeout=10000)
+	public void testResendAfterBadToken()
+			throws IOException, InterruptedException {
+		sendWithBadToken(PIPELINED_PORT, new DispatchOptions().setHistory(16,
+				500));
+	}
+	
+	@Test(timeout=10000)
+	public void testConnectionPool() throws IOException, InterruptedException {
+		sendWithBadToken(POOLED_PORT, new DispatchOptions().setHistory(16, 500)
+				.setConnections(4));
+	}
+	
+	@Test(timeout=10000)
+	public void testNonBlockingPool()
+			throws IOException, InterruptedException {
+		sendWithBadToken(NIO_PORT, new DispatchOptions().setHistory(16, 500)
+				.setConnections(4).setNonBlocking(true));
+	}
+	
+	/**
+	 * Creates a key store that holds a self-signed certificate for localhost,
+	 * which serves as both the server and the client certificate.
+	 */
+	private static File selfSignedKeyStore(File dir, String phrase)
+			throws IOException, InterruptedException {
+		File keystore = new File(dir, "mock.p12");
+		String keytool = System.getProperty("java.home") + File.separator +
+				"bin" + File.separator + "keytool";
+		Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias",
+				"mock", "-keyalg", "RSA", "-keysize", "2048", "-dname",
+				"CN=localhost", "-validity", "2", "-storetype", "PKCS12",
+				"-keystore", keystore.getPath(), "-storepass", phrase,
+				"-keypass", phrase).inheritIO().start();
+		assertEquals(0, process.waitFor());
+		return keystore;
+	}
+	
+	@Test(timeout=20000)
+	public void testNonBlockingTls() throws Exception {
+		final String PHRASE = "mock-secret";
+		final File keystore = selfSignedKeyStore(tmp.getRoot(), PHRASE);
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		FileInputStream in = new FileInputStream(keystore);
+		try {
+			ks.load(in, PHRASE.toCharArray());
+		}
+		finally {
+			in.close();
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+				KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(ks, PHRASE.toCharArray());
+		SSLContext server_context = SSLContext.getInstance("TLS");
+		server_context.init(kmf.getKeyManagers(), null, null);
+		System.setProperty("javax.net.ssl.trustStore", keystore.getPath());
+		System.setProperty("javax.net.ssl.trustStorePassword", PHRASE);
+		System.setProperty("javax.net.ssl.trustStoreType", "PKCS12");
+		ApnsConfig config = new ApnsConfig() {
+			@Override
+			public String getCertPhrase() { return PHRASE; }
+			@Override
+			public InputStream getCertFile() throws IOException {
+				return new FileInputStream(keystore);
+			}
+			@Override
+			public String getHostname(Service service) { return "localhost"; }
+			@Override
+			public int getPort(Service service) { return TLS_PORT; }
+		};
+		try {
+			sendWithBadToken(TLS_PORT, config, server_context,
+					new DispatchOptions().setHistory(16, 500).setConnections(2)
+					.setNonBlocking(true));
+		}
+		finally {
+			System.clearProperty("javax.net.ssl.trustStore");
+			System.clearProperty("javax.net.ssl.trustStorePassword");
+			System.clearProperty("javax.net.ssl.trustStoreType");
+		}
+	}
+	
+	@Test(timeout=10000)
+	public void testRetryConnect() throws IOException, InterruptedException {
+		final int COUNT = 10;
+		ApnsPushSender.configure(mockConfig(RETRY_PORT), new DispatchOptions()
+				.setHistory(16, 500));
+		for (ApnsToken token : ApnsToken.uniqueRandom(COUNT)) {
+			Notification.withToken(DeviceToken.apnsToken(token.getBytes()))
+					.setMessage("Hello").send();
+		}
+		Thread.sleep(300);
+		AcceptedCounter counter = new AcceptedCounter();
+		MockApnsServer mock = new MockApnsServer();
+		mock.setEventListener(counter).start(RETRY_PORT);
+		counter.awaitCount(COUNT);
+		mock.stop();
+	}
+	
+	@Test(timeout=10000)
+	public void testBroadcast() throws IOException, InterruptedException {
+		final int COUNT = 500;
+		ApnsToken[] tokens = ApnsToken.uniqueRandom(COUNT);
+		ArrayList<DeviceToken> devices = new ArrayList<DeviceToken>();
+		for (ApnsToken token : tokens) {
+			devices.add(DeviceToken.apnsToken(token.getBytes()));
+		}
+		AcceptedCounter counter = new AcceptedCounter();
+		MockApnsServer mock = new MockApnsServer();
+		mock.setEventListener(counter).start(BROADCAST_PORT);
+		ApnsPushSender.configure(mockConfig(BROADCAST_PORT),
+				new DispatchOptions());
+		assertEquals(COUNT, new NotificationTemplate().setMessage("Hello all!")
+				.setDefaultSound().broadcast(devices));
+		counter.awaitCount(COUNT);
+		mock.stop();
+		assertEquals(1, counter.payloads.size());
+	}
+	
+	@Test(timeout=10000)
+	public void testSendAsync() throws IOException, InterruptedException,
+			ExecutionException {
+		final int COUNT = 20, BAD_IDX = 5;
+		ApnsToken[] tokens = ApnsToken.uniqueRandom(COUNT);
+		MockApnsServer mock = new MockApnsServer();
+		mock.defineBadToken(tokens[BAD_IDX].getBytes()).start(FUTURE_PORT);
+		ApnsPushSender.configure(mockConfig(FUTURE_PORT), new DispatchOptions()
+				.setHistory(16, 200));
+		ArrayList<CompletableFuture<PushResult>> results =
+				new ArrayList<CompletableFuture<PushResult>>();
+		ArrayList<CompletableFuture<String>> threads =
+				new ArrayList<CompletableFuture<String>>();
+		for (int k = 0; k < COUNT; k ++) {
+			results.add(Notification.withToken(DeviceToken.apnsToken(tokens[k]
+					.getBytes())).setMessage("Message " + k).sendAsync());
+			threads.add(results.get(k).thenApply(new Function<PushResult,
+					String>() {
+				public String apply(PushResult result) {
+					return Thread.currentThread().getName();
+				}
+			}));
+		}
+		for (int k = 0; k < COUNT; k ++) {
+			PushResult result = results.get(k).get();
+			assertEquals(k != BAD_IDX, result.isAccepted());
+			assertEquals((k == BAD_IDX) ? 8 : 0, result.getStatus());
+			String thread = threads.get(k).get();
+			assertTrue(thread.equals("PushResults") || thread.equals(Thread
+					.currentThread().getName()));
+		}
+		mock.stop();
+	}
+	
+	@Test(timeout=10000)
+	public void testJournalReplay() throws IOException, InterruptedException {
+		final int UNSENT = 5, COUNT = 8;
+		ApnsToken[] tokens = ApnsToken.uniqueRandom(COUNT);
+		File dir = tmp.newFolder("journal");
+		MappedJournal journal = new MappedJournal(new File(dir, "conn-0"),
+				4096, 4);
+		for (int k = 0; k < UNSENT; k ++) {
+			ApnsNotification notification = (ApnsNotification) Notification
+					.withToken(DeviceToken.apnsToken(tokens[k].getBytes()))
+					.setMessage("Unsent " + k);
+			notification.sealPayload();
+			journal.append(notification.getIdentifier(), notification
+					.encodeFrame());
+		}
+		journal.close();
+		AcceptedCounter counter = new AcceptedCounter();
+		MockApnsServer mock = new MockApnsServer();
+		mock.setEventListener(counter).start(JOURNAL_PORT);
+		ApnsPushSender.configure(mockConfig(JOURNAL_PORT), new DispatchOptions()
+				.setJournal(dir, 4096, 4));
+		counter.awaitCount(UNSENT);
+		for (int k = UNSENT; k < COUNT; k ++) {
+			Notification.withToken(DeviceToken.apnsToken(tokens[k].getBytes()))
+					.setMessage("Message " + k).send();
+		}
+		counter.awaitCount(COUNT);
+		mock.stop();
+		assertEquals(COUNT, counter.accepted.size());
+	}
+	
+	@Test(timeout=10000)
+	public void testAdoptSurplusJournals() throws IOException,
+			InterruptedException {
+		final int COUNT = 6;
+		final String[] SURPLUS = { "conn-3", "low-1" };
+		ApnsToken[] tokens = ApnsToken.uniqueRandom(COUNT);
+		File dir = tmp.newFolder("adopt");
+		for (int n = 0; n < SURPLUS.length; n ++) {
+			MappedJournal journal = new MappedJournal(new File(dir, SURPLUS[n]),
+					4096, 4);
+			for (int k = n; k < COUNT; k += SURPLUS.length) {
+				ApnsNotification notification = (ApnsNotification) Notification
+						.withToken(DeviceToken.apnsToken(tokens[k].getBytes()))
+						.setMessage("Unsent " + k);
+				notification.seal();
+				journal.append(notification.getIdentifier(), notification
+						.encodeFrame());
+			}
+			journal.close();
+		}
+		AcceptedCounter counter = new AcceptedCounter();
+		MockApnsServer mock = new MockApnsServer();
+		mock.setEventListener(counter).start(ADOPT_PORT);
+		ApnsPushSender.configure(mockConfig(ADOPT_PORT), new DispatchOptions()
+				.setConnections(2).setJournal(dir, 4096, 4));
+		counter.awaitCount(COUNT);
+		mock.stop();
+		for (String name : SURPLUS) {
+			MappedJournal journal = new MappedJournal(new File(dir, name),
+					4096, 4);
+			assertEquals(journal.getEnd(), journal.getConsumed());
+			journal.close();
+		}
+	}
+	
+	@Test(timeout=10000)
+	public void testResendFromJournal()
+			throws IOException, InterruptedException {
+		final int COUNT = 40, BAD_IDX = 7;
+		ApnsToken[] tokens = ApnsToken.uniqueRandom(COUNT);
+		final byte[] slow_token = tokens[BAD_IDX - 1].getBytes();
+		AcceptedCounter counter = new AcceptedCounter() {
+			@Override
+			public void didAcceptPacket(ApnsPacket packet) {
+				if (Arrays.equals(slow_token, packet.getToken())) {
+					try {
+						Thread.sleep(300);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				super.didAcceptPacket(packet);
+			}
+		};
+		MockApnsServer mock = new MockApnsServer();
+		mock.setEventListener(counter).defineBadToken(tokens[BAD_IDX]
+				.getBytes()).start(DEEP_REWIND_PORT);
+		ApnsPushSender.configure(mockConfig(DEEP_REWIND_PORT),
+				new DispatchOptions().setHistory(2, 0).setMaxHistorySize(2)
+				.setJournal(tmp.newFolder("deep"), 4096, 2));
+		for (int k = 0; k < COUNT; k ++) {
+			Notification.withToken(DeviceToken.apnsToken(tokens[k].getBytes()))
+					.setMessage("Message " + k).send();
+		}
+		counter.awaitCount(COUNT - 1);
+		mock.stop();
+		assertEquals(COUNT - 1, counter.accepted.size());
+	}
+	
+	@Test(timeout=10000)
+	public void testReleaseWithoutRetention() throws IOException,
+			InterruptedException {
+		final int COUNT = 5;
+		ApnsToken[] tokens = ApnsToken.uniqueRandom(COUNT);
+		AcceptedCounter counter = new AcceptedCounter();
+		MockApnsServer mock = new MockApnsServer();
+		mock.setEventListener(counter).start(QUIET_PORT);
+		ApnsPushSender.configure(mockConfig(QUIET_PORT), new DispatchOptions()
+				.setHistory(16, 0));
+		for (int k = 0; k < COUNT; k ++) {
+			Notification.withToken(DeviceToken.apnsToken(tokens[k].getBytes()))
+					.setMessage("Message " + k).send();
+		}
+		counter.awaitCount(COUNT);
+		ApnsConnection connection = ApnsPushSender.getInstance()
+				.getConnection(0);
+		while (! connection.isReleased()) {
+			Thread.sleep(10);
+		}
+		mock.stop();
+	}
+	
+	@Test(timeout=10000)
+	public void testInactiveTokenFilter() throws IOException,
+			InterruptedException, ExecutionException {
+		final int COUNT = 10, BAD_IDX = 3;
+		ApnsToken[] tokens = ApnsToken.uniqueRandom(COUNT);
+		AcceptedCounter counter = new AcceptedCounter();
+		MockApnsServer mock = new MockApnsServer();
+		mock.setEventListener(counter).defineBadToken(tokens[BAD_IDX]
+				.getBytes()).start(FILTER_PORT);
+		ApnsPushSender.configure(mockConfig(FILTER_PORT), new DispatchOptions()
+				.setHistory(16, 500));
+		InactiveTokenFilter filter = new InactiveTokenFilter(100, 0.01);
+		filter.add(tokens[0].getBytes());
+		ApnsPushSender.getInstance().setInactiveTokenFilter(filter);
+		ArrayList<CompletableFuture<PushResult>> results =
+				new ArrayList<CompletableFuture<PushResult>>();
+		for (int k = 0; k < COUNT; k ++) {
+			results.add(Notification.withToken(DeviceToken.apnsToken(tokens[k]
+					.getBytes())).setMessage("Message " + k).sendAsync());
+		}
+		counter.awaitCount(COUNT - 2);
+		assertEquals(8, results.get(0).get().getStatus());
+		assertEquals(8, results.get(BAD_IDX).get().getStatus());
+		assertTrue(filter.isInactive(DeviceToken.apnsToken(tokens[BAD_IDX]
+				.getBytes())));
+		PushResult dropped = Notification.withToken(DeviceToken.apnsToken(
+				tokens[BAD_IDX].getBytes())).setMessage("Again").sendAsync()
+				.get();
+		assertEquals(8, dropped.getStatus());
+		mock.stop();
+		assertEquals(COUNT - 2, counter.accepted.size());
+	}
+	
+	private static void awaitConnections(MockApnsServer mock, int n)
+			throws InterruptedException {
+		while (mock.getConnectionCount() < n) {
+			Thread.sleep(10);
+		}
+	}
+	
+	@Test(timeout=10000)
+	public void testStandbyConnection()
+			throws IOException, InterruptedException {
+		AcceptedCounter counter = new AcceptedCounter();
+		MockApnsServer mock = new MockApnsServer();
+		mock.setEventListener(counter).start(STANDBY_PORT);
+		ApnsPushSender.configure(mockConfig(STANDBY_PORT),
+				new DispatchOptions());
+		awaitConnections(mock, 1);
+		Notification.withToken(DeviceToken.apnsToken(ApnsToken.uniqueRandom(1)
+				[0].getBytes())).setMessage("Hello").send();
+		counter.awaitCount(1);
+		awaitConnections(mock, 2);
+		mock.stop();
+	}
+	
+	@Test(timeout=10000)
+	public void testShutdown() throws IOException, InterruptedException,
+			ExecutionException {
+		AcceptedCounter counter = new AcceptedCounter();
+		MockApnsServer mock = new MockApnsServer();
+		mock.setEventListener(counter).start(SHUTDOWN_PORT);
+		ApnsPushSender.configure(mockConfig(SHUTDOWN_PORT),
+				new DispatchOptions().setNonBlocking(true).setLowPriorityLane(
+				16, 50));
+		awaitConnections(mock, 2);
+		ApnsToken[] tokens = ApnsToken.uniqueRandom(2);
+		Notification.withToken(DeviceToken.apnsToken(tokens[0].getBytes()))
+				.setMessage("Hello").send();
+		counter.awaitCount(1);
+		awaitConnections(mock, 3);
+		ApnsPushSender.getInstance().shutdown();
+		while (mock.getConnectionCount() > 0) {
+			Thread.sleep(10);
+		}
+		PushResult result = Notification.withToken(DeviceToken.apnsToken(
+				tokens[1].getBytes())).setMessage("Bye").sendAsync().get();
+		assertEquals(ApnsLink.HANGUP, result.getStatus());
+		mock.stop();
+	}
+	
+	@Test(timeout=10000)
+	public void testPacedDispatch() throws IOException, InterruptedException {
+		final int COUNT = 300;
+		AcceptedCounter counter = new AcceptedCounter();
+		MockApnsServer mock = new MockApnsServer();
+		mock.setEventListener(counter).start(PACED_PORT);
+		ApnsPushSender.configure(mockConfig(PACED_PORT), new DispatchOptions()
+				.setConnections(2).setRateLimit(1000, 50).setGlobalRateLimit(
+				1000, 50));
+		long start = System.currentTimeMillis();
+		for (ApnsToken token : ApnsToken.uniqueRandom(COUNT)) {
+			Notification.withToken(DeviceToken.apnsToken(token.getBytes()))
+					.setMessage("Hello").send();
+		}
+		counter.awaitCount(COUNT);
+		assertTrue(System.currentTimeMillis() - start >= 200);
+		mock.stop();
+	}
+	
+	@Test(timeout=10000)
+	public void testPriorityLanes() throws IOException, InterruptedException {
+		final int N_LOW = 20, N_URGENT = 5;
+		final List<Byte> priorities = Collections.synchronizedList(
+				new ArrayList<Byte>());
+		AcceptedCounter counter = new AcceptedCounter() {
+			@Override
+			public synchronized void didAcceptPacket(ApnsPacket packet) {
+				priorities.add(packet.getPriority());
+				super.didAcceptPacket(packet);
+			}
+		};
+		MockApnsServer mock = new MockApnsServer();
+		mock.setEventListener(counter).start(LANES_PORT);
+		ApnsPushSender.configure(mockConfig(LANES_PORT), new DispatchOptions()
+				.setLowPriorityLane(65536, 300));
+		assertEquals(2, ApnsPushSender.getInstance().getConnectionCount());
+		ArrayList<DeviceToken> devices = new ArrayList<DeviceToken>();
+		for (ApnsToken token : ApnsToken.uniqueRandom(N_LOW + N_URGENT)) {
+			devices.add(DeviceToken.apnsToken(token.getBytes()));
+		}
+		new NotificationTemplate().setMessage("Sale!").setPriority(
+				Notification.PRIORITY_POWER_SAVING).broadcast(devices.subList(
+				0, N_LOW));
+		for (DeviceToken device : devices.subList(N_LOW, N_LOW + N_URGENT)) {
+			Notification.withToken(device).setMessage("Your code").send();
+		}
+		counter.awaitCount(N_LOW + N_URGENT);
+		mock.stop();
+		for (int k = 0; k < priorities.size(); k ++) {
+			assertEquals((k < N_URGENT) ? 10 : 5, (int) priorities.get(k));
+		}
+	}
+	
+	@Test(timeout=10000)
+	public void testFullBurst() throws IOException, InterruptedException {
+		final int COUNT = 512;
+		AcceptedCounter counter = new AcceptedCounter();
+		MockApnsServer mock = new MockApnsServer();
+		mock.setEventListener(counter).start(BURST_PORT);
+		ApnsPushSender.configure(mockConfig(BURST_PORT), new DispatchOptions()
+				.setLowPriorityLane(65536, 60000));
+		ArrayList<DeviceToken> devices = new ArrayList<DeviceToken>();
+		for (ApnsToken token : ApnsToken.uniqueRandom(COUNT)) {
+			devices.add(DeviceToken.apnsToken(token.getBytes()));
+		}
+		new NotificationTemplate().setMessage("Sale!").setPriority(
+				Notification.PRIORITY_POWER_SAVING).broadcast(devices);
+		counter.awaitCount(COUNT);
+		mock.stop();
+	}
+	
+	@Test(timeout=10000)
+	public void testCoalescing() throws IOException, InterruptedException,
+			ExecutionException {
+		final int N_DEVICES = 10, N_UPDATES = 5;
+		AcceptedCounter counter = new AcceptedCounter();
+		MockApnsServer mock = new MockApnsServer();
+		mock.setEventListener(counter).start(COALESCE_PORT);
+		ApnsPushSender.configure(mockConfig(COALESCE_PORT),
+				new DispatchOptions().setHistory(16, 200));
+		NotificationCoalescer coalescer = new NotificationCoalescer(300);
+		ApnsToken[] tokens = ApnsToken.uniqueRandom(N_DEVICES);
+		ArrayList<CompletableFuture<PushResult>> results =
+				new ArrayList<CompletableFuture<PushResult>>();
+		for (int k = 0; k < N_UPDATES; k ++) {
+			for (ApnsToken token : tokens) {
+				Notification notification = Notification.withToken(DeviceToken
+						.apnsToken(token.getBytes())).setMessage("Update " + k);
+				if (k == 0) {
+					results.add(coalescer.sendAsync(notification, "score"));
+				}
+				else {
+					coalescer.send(notification, "score");
+				}
+			}
+		}
+		assertEquals(N_DEVICES, coalescer.getPendingCount());
+		assertEquals(N_DEVICES * (N_UPDATES - 1), coalescer
+				.getCollapsedCount());
+		counter.awaitCount(N_DEVICES);
+		for (CompletableFuture<PushResult> result : results) {
+			assertTrue(result.get().isAccepted());
+			assertEquals("Update " + (N_UPDATES - 1), result.get()
+					.getNotification().getMessage());
+		}
+		mock.stop();
+		assertEquals(N_DEVICES, counter.accepted.size());
+		assertEquals(1, counter.payloads.size());
+	}
+	
+	@Test(timeout=10000)
+	public void testRejectedCoalescedNotification()
+			throws InterruptedException {
+		DeviceToken token = DeviceToken.apnsToken(ApnsToken.uniqueRandom(1)[0]
+				.getBytes());
+		NotificationCoalescer coalescer = new NotificationCoalescer(20,
+				new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				throw new RejectedExecutionException();
+			}
+		});
+		CompletableFuture<PushResult> result = coalescer.sendAsync(Notification
+				.withToken(token).setMessage("Hello"), null);
+		try {
+			result.get();
+			fail("Expected the send to be rejected.");
+		}
+		catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+	}
+	
+	@Test(timeout=10000)
+	public void testCoalescedFailure() throws InterruptedException {
+		DeviceToken token = DeviceToken.apnsToken(ApnsToken.uniqueRandom(1)[0]
+				.getBytes());
+		NotificationCoalescer coalescer = new NotificationCoalescer(50);
+		ArrayList<CompletableFuture<PushResult>> results =
+				new ArrayList<CompletableFuture<PushResult>>();
+		for (int k = 0; k < 3; k ++) {
+			results.add(coalescer.sendAsync(new Notification(token) {
+				@Override
+				public Notification setDefaultSound() { return this; }
+				@Override
+				void sealPayload() { }
+				@Override
+				byte[] encode() { return null; }
+				@Override
+				void writeToOutputStream(OutputStream out) { }
+				@Override
+				void dispatch() {
+					throw new AssertionError("Dispatch failed.");
+				}
+			}, null));
+		}
+		for (CompletableFuture<PushResult> result : results) {
+			try {
+				result.get();
+				fail("Expected the send to fail.");
+			}
+			catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof AssertionError);
+			}
+		}
+	}
 }
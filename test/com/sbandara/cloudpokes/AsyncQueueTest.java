@@ -1,15 +1,32 @@
 package com.sbandara.cloudpokes;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
+@RunWith(Parameterized.class)
 public class AsyncQueueTest {
 	
 	private final static int SIZE = 12, HISTORY_MS = 200, COUNT = 64;
-	private AsyncRedoBlockingQueue queue;
+	private RedoQueue queue;
 	private ArrayList<Integer> dest = new ArrayList<Integer>();
+	private final boolean is_lock_free;
+	
+	@Parameters
+	public static Collection<Object[]> variants() {
+		return Arrays.asList(new Object[][] { { false }, { true } });
+	}
+	
+	public AsyncQueueTest(boolean is_lock_free) {
+		this.is_lock_free = is_lock_free;
+	}
 	
 	private class Action implements Runnable {
 		public Action(int id) {
@@ -24,7 +41,12 @@ public class AsyncQueueTest {
 	@Before
 	public void init() {
 		dest.clear();
-		queue = new AsyncRedoBlockingQueue(SIZE, HISTORY_MS);
+		if (is_lock_free) {
+			queue = new LockFreeRedoQueue(SIZE, HISTORY_MS);
+		}
+		else {
+			queue = new AsyncRedoBlockingQueue(SIZE, HISTORY_MS);
+		}
 	}
 	
 	private static void sleepDeeply(long millis) {
@@ -103,4 +125,55 @@ public class AsyncQueueTest {
 		int last_entry = dest.get(dest.size() - 1);
 		Assert.assertEquals(COUNT - 1, last_entry);
 	}
+	
+	@Test(timeout=10000)
+	public void testIdleListener() {
+		final ArrayList<Integer> idle_at = new ArrayList<Integer>();
+		queue.setIdleListener(new Runnable() {
+			public void run() {
+				idle_at.add(dest.size());
+			}
+		});
+		for (int id = 0; id < COUNT; id ++) {
+			queue.enqueue(new Action(id), id);
+			if (id == SIZE - 1) {
+				queue.purgeQueue();
+				Assert.assertEquals(SIZE, (int) idle_at.get(idle_at.size() - 1));
+			}
+		}
+		queue.purgeQueue();
+		Assert.assertEquals(COUNT, (int) idle_at.get(idle_at.size() - 1));
+	}
+	
+	@Test(timeout=10000)
+	public void testConcurrentProducers() throws InterruptedException {
+		final int N_PRODUCER = 4, PER_PRODUCER = 500;
+		queue = is_lock_free ? new LockFreeRedoQueue(SIZE, 0) :
+				new AsyncRedoBlockingQueue(SIZE, 0);
+		Thread[] producers = new Thread[N_PRODUCER];
+		for (int p = 0; p < N_PRODUCER; p ++) {
+			final int base = p * PER_PRODUCER;
+			producers[p] = new Thread() {
+				@Override
+				public void run() {
+					for (int k = 0; k < PER_PRODUCER; k ++) {
+						queue.enqueue(new Action(base + k), base + k);
+					}
+				}
+			};
+			producers[p].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		queue.purgeQueue();
+		Assert.assertEquals(N_PRODUCER * PER_PRODUCER, dest.size());
+		int[] last = new int[N_PRODUCER];
+		Arrays.fill(last, -1);
+		for (int id : dest) {
+			int p = id / PER_PRODUCER;
+			Assert.assertTrue(id > last[p]);
+			last[p] = id;
+		}
+	}
 }
@@ -0,0 +1,162 @@
+package com.sbandara.cloudpokes;
+
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BatchQueueTest {
+
+	private final static int SIZE = 16, BATCH = 5;
+
+	@Test(timeout=10000)
+	public void testDrainInBatches() {
+		BatchRedoQueue<Integer> queue = new BatchRedoQueue<Integer>(SIZE, 0);
+		ArrayList<Integer> batch = new ArrayList<Integer>();
+		for (int id = 0; id < 12; id ++) {
+			queue.enqueue(id, id);
+		}
+		Assert.assertEquals(BATCH, queue.drainTo(batch, BATCH));
+		Assert.assertEquals(BATCH, queue.drainTo(batch, BATCH));
+		Assert.assertEquals(2, queue.drainTo(batch, BATCH));
+		Assert.assertEquals(0, queue.drainTo(batch, BATCH));
+		Assert.assertFalse(queue.hasPending());
+		for (int k = 0; k < batch.size(); k ++) {
+			Assert.assertEquals(k, (int) batch.get(k));
+		}
+	}
+
+	@Test(timeout=10000)
+	public void testRewindAcrossBatches() throws EntryNotFoundException {
+		BatchRedoQueue<Integer> queue = new BatchRedoQueue<Integer>(SIZE, 1000);
+		ArrayList<Integer> batch = new ArrayList<Integer>();
+		for (int id = 0; id < 12; id ++) {
+			queue.enqueue(id, id);
+		}
+		queue.drainTo(batch, BATCH);
+		queue.drainTo(batch, BATCH);
+		Assert.assertFalse(queue.isStale());
+		queue.rewind(3);
+		Assert.assertTrue(queue.isStale());
+		batch.clear();
+		Assert.assertEquals(BATCH, queue.drainTo(batch, BATCH));
+		Assert.assertFalse(queue.isStale());
+		Assert.assertEquals(4, (int) batch.get(0));
+		queue.drainTo(batch, 100);
+		Assert.assertEquals(8, batch.size());
+		Assert.assertEquals(11, (int) batch.get(batch.size() - 1));
+		try {
+			queue.rewind(42);
+			Assert.fail();
+		}
+		catch (EntryNotFoundException e) { }
+	}
+
+	@Test(timeout=10000)
+	public void testRewindBefore() throws EntryNotFoundException {
+		BatchRedoQueue<Integer> queue = new BatchRedoQueue<Integer>(SIZE, 1000);
+		ArrayList<Integer> batch = new ArrayList<Integer>();
+		for (int id = 0; id < 8; id ++) {
+			queue.enqueue(id, id);
+		}
+		queue.drainTo(batch, 8);
+		queue.rewindBefore(3);
+		Assert.assertTrue(queue.isStale());
+		batch.clear();
+		Assert.assertEquals(5, queue.drainTo(batch, 100));
+		Assert.assertEquals(3, (int) batch.get(0));
+	}
+
+	@Test(timeout=10000)
+	public void testGrowUnderLoad() {
+		BatchRedoQueue<Integer> queue = new BatchRedoQueue<Integer>(4, SIZE,
+				60000);
+		ArrayList<Integer> batch = new ArrayList<Integer>();
+		for (int id = 0; id < SIZE; id ++) {
+			queue.enqueue(id, id);
+		}
+		Assert.assertEquals(SIZE, queue.drainTo(batch, 100));
+		for (int k = 0; k < SIZE; k ++) {
+			Assert.assertEquals(k, (int) batch.get(k));
+		}
+	}
+
+	@Test(timeout=10000)
+	public void testReleaseAndAdapt() throws EntryNotFoundException {
+		BatchRedoQueue<Integer> queue = new BatchRedoQueue<Integer>(SIZE,
+				60000);
+		ArrayList<Integer> batch = new ArrayList<Integer>();
+		for (int id = 0; id < SIZE; id ++) {
+			queue.enqueue(id, id);
+		}
+		queue.drainTo(batch, SIZE);
+		queue.release(BATCH);
+		for (int id = SIZE; id <= SIZE + BATCH; id ++) {
+			queue.enqueue(id, id);
+		}
+		queue.rewind(BATCH + 2);
+		Assert.assertTrue(queue.getRetentionMillis() < 60000);
+		batch.clear();
+		queue.drainTo(batch, 100);
+		Assert.assertEquals(BATCH + 3, (int) batch.get(0));
+		Assert.assertEquals(SIZE + BATCH, (int) batch.get(batch.size() - 1));
+	}
+
+	@Test(timeout=10000)
+	public void testRetainFromWrite() throws InterruptedException {
+		BatchRedoQueue<Integer> queue = new BatchRedoQueue<Integer>(4, 300);
+		ArrayList<Integer> batch = new ArrayList<Integer>();
+		for (int id = 0; id < 4; id ++) {
+			queue.enqueue(id, id);
+		}
+		queue.drainTo(batch, 4);
+		Assert.assertFalse(queue.awaitPending(20));
+		Thread.sleep(250);
+		queue.markWritten();
+		long start = System.currentTimeMillis();
+		queue.enqueue(4, 4);
+		Assert.assertTrue(System.currentTimeMillis() - start >= 150);
+		Assert.assertTrue(queue.awaitPending(20));
+	}
+
+	@Test(timeout=10000)
+	public void testConcurrentGrowth() throws InterruptedException {
+		final int N_PRODUCER = 4, PER_PRODUCER = 2000;
+		final BatchRedoQueue<Integer> queue = new BatchRedoQueue<Integer>(4,
+				1024, 5);
+		Thread[] producers = new Thread[N_PRODUCER];
+		for (int p = 0; p < N_PRODUCER; p ++) {
+			final int base = p * PER_PRODUCER;
+			producers[p] = new Thread() {
+				@Override
+				public void run() {
+					for (int k = 0; k < PER_PRODUCER; k ++) {
+						queue.enqueue(base + k, base + k);
+					}
+				}
+			};
+			producers[p].start();
+		}
+		ArrayList<Integer> batch = new ArrayList<Integer>();
+		int[] last = new int[N_PRODUCER];
+		for (int p = 0; p < N_PRODUCER; p ++) {
+			last[p] = p * PER_PRODUCER - 1;
+		}
+		int n_drained = 0;
+		while (n_drained < N_PRODUCER * PER_PRODUCER) {
+			batch.clear();
+			if (queue.drainTo(batch, 64) == 0) {
+				queue.awaitPending();
+			}
+			for (int id : batch) {
+				int p = id / PER_PRODUCER;
+				Assert.assertEquals(last[p] + 1, id);
+				last[p] = id;
+			}
+			n_drained += batch.size();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.sbandara.cloudpokes;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DeviceTokenTest {
+
+	private static byte[] randomToken(Random random) {
+		byte[] token = new byte[32];
+		random.nextBytes(token);
+		return token;
+	}
+
+	@Test
+	public void testEqualsAndHashCode() {
+		Random random = new Random(7);
+		byte[] bytes = randomToken(random);
+		DeviceToken a = DeviceToken.apnsToken(bytes),
+				b = DeviceToken.apnsToken(bytes.clone());
+		Assert.assertEquals(a, b);
+		Assert.assertEquals(a.hashCode(), b.hashCode());
+		Assert.assertFalse(a.equals(DeviceToken.apnsToken(randomToken(
+				random))));
+		Assert.assertFalse(a.equals(DeviceToken.gcmToken("reg-id")));
+		Assert.assertEquals(DeviceToken.gcmToken("reg-id").hashCode(),
+				DeviceToken.gcmToken("reg-id").hashCode());
+		HashSet<DeviceToken> set = new HashSet<DeviceToken>();
+		for (int k = 0; k < 1000; k ++) {
+			set.add(DeviceToken.apnsToken(randomToken(random)));
+		}
+		set.add(b);
+		Assert.assertEquals(1001, set.size());
+		Assert.assertTrue(set.contains(a));
+	}
+
+	@Test
+	public void testEncodings() {
+		byte[] bytes = randomToken(new Random(11));
+		DeviceToken token = DeviceToken.apnsToken(bytes);
+		String base64 = token.getBase64ApnsToken();
+		Assert.assertSame(base64, token.getBase64ApnsToken());
+		Assert.assertEquals(token, DeviceToken.apnsTokenFromBase64(base64));
+		Assert.assertTrue(token.equalsApnsToken(base64));
+		Assert.assertTrue(token.equalsApnsToken(bytes));
+		Assert.assertEquals("APNS:" + base64, token.toString());
+		byte[] copy = token.getApnsToken();
+		Assert.assertArrayEquals(bytes, copy);
+		copy[0] ++;
+		Assert.assertTrue(token.equalsApnsToken(bytes));
+	}
+
+	@Test
+	public void testLenientBase64() {
+		DeviceToken token = DeviceToken.apnsToken(randomToken(new Random(17)));
+		String base64 = token.getBase64ApnsToken(), wrapped = " " + base64
+				.substring(0, 20) + "\r\n" + base64.substring(20) + "\n";
+		Assert.assertEquals(token, DeviceToken.apnsTokenFromBase64(wrapped));
+		Assert.assertTrue(token.equalsApnsToken(wrapped));
+	}
+
+	@Test
+	public void testInterner() {
+		DeviceToken.Interner interner = new DeviceToken.Interner();
+		byte[] bytes = randomToken(new Random(13));
+		DeviceToken first = interner.apnsToken(bytes);
+		Assert.assertSame(first, interner.apnsToken(bytes.clone()));
+		Assert.assertSame(first, interner.apnsTokenFromBase64(first
+				.getBase64ApnsToken()));
+		Assert.assertSame(interner.gcmToken("reg-id"), interner.gcmToken(
+				"reg-id"));
+		Assert.assertEquals(2, interner.size());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testBadLength() {
+		DeviceToken.apnsToken(new byte[31]);
+	}
+}
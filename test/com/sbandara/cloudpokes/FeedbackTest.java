@@ -0,0 +1,116 @@
+package com.sbandara.cloudpokes;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FeedbackTest {
+
+	private final static int COUNT = 2500, TIME = 1400000000;
+
+	/**
+	 * Returns at most a few bytes per read, as a slow network would.
+	 */
+	private static class TricklingStream extends InputStream {
+
+		private final InputStream in;
+		private final Random random = new Random(42);
+
+		TricklingStream(byte[] data) {
+			in = new ByteArrayInputStream(data);
+		}
+
+		@Override
+		public int read() throws IOException {
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return in.read(b, off, Math.min(len, 1 + random.nextInt(50)));
+		}
+	}
+
+	private static byte[] tokenFor(int k) {
+		byte[] token = new byte[32];
+		Arrays.fill(token, (byte) k);
+		token[0] = (byte) (k >> 8);
+		return token;
+	}
+
+	private static byte[] feedback(int count) {
+		ByteBuffer buf = ByteBuffer.allocate(count * 38);
+		for (int k = 0; k < count; k ++) {
+			buf.putInt(TIME + k).putShort((short) 32).put(tokenFor(k));
+		}
+		return buf.array();
+	}
+
+	private static class Checker implements FeedbackClient.BatchListener {
+		int n_received = 0, n_batch = 0;
+		final byte[] token = new byte[32];
+		public void receiveInactiveTokens(FeedbackClient.Batch batch) {
+			Assert.assertTrue(batch.size() <= 1024);
+			for (int k = 0; k < batch.size(); k ++, n_received ++) {
+				batch.getToken(k, token, 0);
+				Assert.assertArrayEquals(tokenFor(n_received), token);
+				Assert.assertEquals((TIME + n_received) * 1000L, batch
+						.getTime(k));
+			}
+			n_batch ++;
+		}
+	}
+
+	@Test
+	public void testPartialReads() throws IOException {
+		Checker checker = new Checker();
+		FeedbackClient.readFeedback(new TricklingStream(feedback(COUNT)),
+				checker);
+		Assert.assertEquals(COUNT, checker.n_received);
+		Assert.assertEquals(3, checker.n_batch);
+	}
+
+	@Test(expected=IOException.class)
+	public void testTruncatedRecord() throws IOException {
+		byte[] data = feedback(3);
+		FeedbackClient.readFeedback(new TricklingStream(Arrays.copyOf(data,
+				data.length - 5)), new Checker());
+	}
+
+	@Test
+	public void testSharedCredentials() throws IOException {
+		final int[] n_loads = new int[1];
+		ApnsGateway.ApnsConfig config = new ApnsGateway.ApnsConfig() {
+			@Override
+			public String getCertPhrase() { return "secret"; }
+			@Override
+			public InputStream getCertFile() throws IOException {
+				n_loads[0] ++;
+				return null;
+			}
+			@Override
+			public String getHostname(ApnsGateway.Service service) {
+				return "localhost";
+			}
+			@Override
+			public int getPort(ApnsGateway.Service service) { return 2196; }
+		};
+		FeedbackClient first = new FeedbackClient(config),
+				second = new FeedbackClient(config);
+		SSLContext context = first.getContext();
+		Assert.assertSame(context, second.getContext());
+		Assert.assertNotNull(second.createEngine());
+		Assert.assertEquals(1, n_loads[0]);
+		ApnsGateway.invalidateCredentials(config);
+		Assert.assertNotSame(context, second.getContext());
+		Assert.assertEquals(2, n_loads[0]);
+	}
+}
@@ -0,0 +1,210 @@
+package com.sbandara.cloudpokes;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class GcmTest {
+
+	private final static int MOCK_GCM_PORT = 2280;
+	private final static String ENDPOINT = "http://localhost:" +
+			MOCK_GCM_PORT + "/send";
+
+	private static HttpServer server = null;
+	private final static AtomicInteger n_request = new AtomicInteger(),
+			n_active = new AtomicInteger(), max_active = new AtomicInteger();
+
+	@BeforeClass
+	public static void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(MOCK_GCM_PORT), 0);
+		server.createContext("/send", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				n_request.incrementAndGet();
+				int active = n_active.incrementAndGet();
+				while (active > max_active.get()) {
+					max_active.compareAndSet(max_active.get(), active);
+				}
+				JsonObject request = JsonObject.readFrom(new InputStreamReader(
+						exchange.getRequestBody(), "UTF-8"));
+				JsonArray results = new JsonArray();
+				for (JsonValue id : request.get("registration_ids").asArray()) {
+					JsonObject result = new JsonObject();
+					if (id.asString().startsWith("bad")) {
+						result.add("error", "NotRegistered");
+					}
+					else {
+						result.add("message_id", "1:" + id.asString());
+					}
+					results.add(result);
+				}
+				byte[] body = new JsonObject().add("results", results)
+						.toString().getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+				n_active.decrementAndGet();
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		server.stop(0);
+	}
+
+	private static class ResultRecorder implements GcmPushSender.Delegate {
+		final HashMap<String, String> results = new HashMap<String, String>();
+		@Override
+		public String getApiKey() { return "key"; }
+		@Override
+		public synchronized void didSend(Notification notification,
+				String reg_id) {
+			results.put(notification.getToken().getGcmToken(), "ok");
+		}
+		@Override
+		public synchronized void didFail(Notification notification,
+				String error) {
+			results.put(notification.getToken().getGcmToken(), error);
+		}
+	}
+
+	private static void send(GcmPushSender sender, String token,
+			String message) {
+		GcmNotification notification = (GcmNotification) Notification
+				.withToken(DeviceToken.gcmToken(token)).setMessage(message);
+		notification.sealPayload();
+		sender.sendNotification(notification);
+	}
+
+	@Test(timeout=10000)
+	public void testMulticastBatching() {
+		final int COUNT = 2500;
+		ResultRecorder recorder = new ResultRecorder();
+		GcmPushSender sender = new GcmPushSender(recorder, ENDPOINT,
+				new GcmOptions().setBatchDelay(60000));
+		n_request.set(0);
+		for (int k = 0; k < COUNT; k ++) {
+			send(sender, ((k % 7 == 0) ? "bad-" : "reg-") + k, "Hello");
+		}
+		send(sender, "reg-other", "Bye");
+		assertEquals(2, n_request.get());
+		sender.flush();
+		assertEquals(4, n_request.get());
+		assertEquals(COUNT + 1, recorder.results.size());
+		for (int k = 0; k < COUNT; k ++) {
+			String token = ((k % 7 == 0) ? "bad-" : "reg-") + k;
+			assertEquals((k % 7 == 0) ? "NotRegistered" : "ok",
+					recorder.results.get(token));
+		}
+	}
+
+	@Test(timeout=10000)
+	public void testBatchDelay() throws InterruptedException {
+		ResultRecorder recorder = new ResultRecorder();
+		GcmPushSender sender = new GcmPushSender(recorder, ENDPOINT,
+				new GcmOptions().setBatchDelay(50));
+		send(sender, "reg-1", "Hello");
+		send(sender, "reg-2", "Hello");
+		synchronized (recorder) {
+			while (recorder.results.size() < 2) {
+				recorder.wait(10);
+			}
+		}
+		assertEquals("ok", recorder.results.get("reg-2"));
+	}
+	
+	@Test(timeout=10000)
+	public void testFailingBatch() throws InterruptedException {
+		final AtomicInteger n_sent = new AtomicInteger();
+		GcmPushSender failing = new GcmPushSender(new ResultRecorder() {
+			@Override
+			public void didSend(Notification notification, String reg_id) {
+				n_sent.incrementAndGet();
+				throw new IllegalStateException();
+			}
+			@Override
+			public void didFail(Notification notification, String error) {
+				n_sent.incrementAndGet();
+				throw new IllegalStateException();
+			}
+		}, ENDPOINT, new GcmOptions().setBatchDelay(20));
+		send(failing, "reg-1", "Hello");
+		while (n_sent.get() == 0) {
+			Thread.sleep(10);
+		}
+		ResultRecorder recorder = new ResultRecorder();
+		GcmPushSender sender = new GcmPushSender(recorder, ENDPOINT,
+				new GcmOptions().setBatchDelay(20));
+		send(sender, "reg-2", "Hello");
+		synchronized (recorder) {
+			while (recorder.results.isEmpty()) {
+				recorder.wait(10);
+			}
+		}
+		assertEquals("ok", recorder.results.get("reg-2"));
+	}
+	
+	@Test(timeout=10000)
+	public void testThrowingDelegate() {
+		ResultRecorder recorder = new ResultRecorder() {
+			@Override
+			public synchronized void didSend(Notification notification,
+					String reg_id) {
+				super.didSend(notification, reg_id);
+				if ("reg-throw".equals(notification.getToken().getGcmToken())) {
+					throw new IllegalStateException();
+				}
+			}
+		};
+		GcmPushSender sender = new GcmPushSender(recorder, ENDPOINT,
+				new GcmOptions().setBatchDelay(60000));
+		send(sender, "reg-1", "Hello");
+		send(sender, "reg-throw", "Hello");
+		try {
+			sender.flush();
+			fail("Expected the delegate to throw.");
+		}
+		catch (IllegalStateException e) { }
+		assertEquals("ok", recorder.results.get("reg-1"));
+		assertEquals("ok", recorder.results.get("reg-throw"));
+	}
+	
+	@Test(timeout=10000)
+	public void testAsyncRequests() throws InterruptedException {
+		final int COUNT = 200, MAX_IN_FLIGHT = 4;
+		ResultRecorder recorder = new ResultRecorder();
+		GcmPushSender sender = new GcmPushSender(recorder, ENDPOINT,
+				new GcmOptions().setAsync(MAX_IN_FLIGHT));
+		max_active.set(0);
+		for (int k = 0; k < COUNT; k ++) {
+			send(sender, "reg-" + k, "Message " + k);
+		}
+		synchronized (recorder) {
+			while (recorder.results.size() < COUNT) {
+				recorder.wait(10);
+			}
+		}
+		assertFalse(recorder.results.containsValue(null));
+		assertTrue(max_active.get() <= MAX_IN_FLIGHT);
+		sender.shutdown();
+	}
+}
@@ -0,0 +1,149 @@
+package com.sbandara.cloudpokes;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+
+public class TemplateTest {
+
+	private static void assertSameObject(JsonObject expected,
+			JsonObject actual) {
+		assertEquals(new HashSet<String>(expected.names()), new HashSet<String>(
+				actual.names()));
+		for (String name : expected.names()) {
+			JsonValue value = expected.get(name);
+			if (value.isObject()) {
+				assertSameObject(value.asObject(), actual.get(name).asObject());
+			}
+			else {
+				assertEquals(value, actual.get(name));
+			}
+		}
+	}
+
+	private static JsonObject apnsPayload(Notification notification)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		notification.writeToOutputStream(out);
+		ByteBuffer frame = ByteBuffer.wrap(out.toByteArray());
+		frame.position(5);
+		frame.position(frame.position() + 3 + frame.getShort(frame.position()
+				+ 1));
+		byte[] payload = new byte[frame.getShort(frame.position() + 1)];
+		frame.position(frame.position() + 3);
+		frame.get(payload);
+		return JsonObject.readFrom(new String(payload, "UTF-8"));
+	}
+
+	private static JsonObject gcmRequest(Notification notification)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		notification.writeToOutputStream(out);
+		return JsonObject.readFrom(out.toString("UTF-8"));
+	}
+
+	private static Notification seal(Notification notification) {
+		notification.seal();
+		return notification;
+	}
+
+	@Test
+	public void testApnsTemplate() throws IOException {
+		NotificationTemplate template = new NotificationTemplate().setMessage(
+				"Gr\u00fc\u00dfe!").setDefaultSound().setCustom("campaign",
+				JsonValue.valueOf(7));
+		DeviceToken token = DeviceToken.apnsToken(new byte[32]);
+		Notification plain = Notification.withToken(token).setMessage(
+				"Gr\u00fc\u00dfe!").setDefaultSound().setBadge(3).setCustom(
+				"campaign", JsonValue.valueOf(7)).setCustom("user",
+				JsonValue.valueOf("\u20ac"));
+		assertSameObject(apnsPayload(seal(plain)), apnsPayload(template
+				.withToken(token).setBadge(3).setCustom("user",
+				JsonValue.valueOf("\u20ac"))));
+		assertSameObject(JsonObject.readFrom("{\"aps\":{\"alert\":" +
+				"\"Gr\u00fc\u00dfe!\",\"sound\":\"default\"},\"campaign\":7}"),
+				apnsPayload(template.withToken(token)));
+	}
+
+	@Test
+	public void testGcmTemplate() throws IOException {
+		NotificationTemplate template = new NotificationTemplate().setMessage(
+				"Hello").setSound("chime").setCustom("campaign",
+				JsonValue.valueOf(7));
+		DeviceToken token = DeviceToken.gcmToken("reg-id");
+		Notification plain = Notification.withToken(token).setMessage("Hello")
+				.setSound("chime").setBadge(1).setCustom("campaign",
+				JsonValue.valueOf(7)).setCustom("user", JsonValue.valueOf(9));
+		assertSameObject(gcmRequest(seal(plain)), gcmRequest(template
+				.withToken(token).setBadge(1).setCustom("user",
+				JsonValue.valueOf(9))));
+	}
+
+	@Test
+	public void testTemplateIsFrozen() {
+		NotificationTemplate template = new NotificationTemplate().setCustom(
+				"campaign", JsonValue.valueOf(7));
+		Notification notification = template.withToken(DeviceToken.gcmToken(
+				"reg-id"));
+		try {
+			notification.setCustom("campaign", JsonValue.valueOf(8));
+			fail();
+		}
+		catch (IllegalArgumentException e) { }
+		try {
+			notification.setMessage("Hello");
+			fail();
+		}
+		catch (IllegalStateException e) { }
+		try {
+			template.setMessage("Hello");
+			fail();
+		}
+		catch (IllegalStateException e) { }
+	}
+
+	@Test
+	public void testEncodingIsCached() throws IOException {
+		Notification apns = seal(Notification.withToken(DeviceToken.apnsToken(
+				new byte[32])).setMessage("Hello").setBadge(1));
+		byte[] frame = apns.getEncoded();
+		assertNotNull(frame);
+		JsonObject payload = apnsPayload(apns);
+		assertSameObject(payload, apnsPayload(apns));
+		assertSame(frame, apns.getEncoded());
+		apns.setBadge(2);
+		assertSame(frame, apns.getEncoded());
+		assertSameObject(payload, apnsPayload(apns));
+		assertEquals(2, apnsPayload(seal(apns)).get("aps").asObject().get(
+				"badge").asInt());
+		assertNotSame(frame, apns.getEncoded());
+		ApnsPushSender.is_debug = true;
+		try {
+			apns.send();
+		}
+		catch (IllegalStateException unconfigured) { }
+		finally {
+			ApnsPushSender.is_debug = false;
+		}
+		apns.setBadge(3);
+		assertEquals(2, apnsPayload(apns).get("aps").asObject().get("badge")
+				.asInt());
+		assertEquals(3, apnsPayload(seal(apns)).get("aps").asObject().get(
+				"badge").asInt());
+		Notification gcm = seal(Notification.withToken(DeviceToken.gcmToken(
+				"reg-id")).setMessage("Hello").setSound("chime"));
+		byte[] data = ((GcmNotification) gcm).getData();
+		assertSame(data, ((GcmNotification) gcm).getData());
+		gcm.setSound(null);
+		assertFalse(gcmRequest(seal(gcm)).get("data").asObject().names()
+				.contains("sound"));
+	}
+}
@@ -0,0 +1,119 @@
+package com.sbandara.cloudpokes;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TokenLoaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[][] randomTokens(int n) {
+		Random random = new Random(19);
+		byte[][] tokens = new byte[n][32];
+		for (byte[] token : tokens) {
+			random.nextBytes(token);
+		}
+		return tokens;
+	}
+
+	private static String toHex(byte[] token) {
+		StringBuilder hex = new StringBuilder(2 * token.length);
+		for (byte b : token) {
+			hex.append(Character.forDigit((b >> 4) & 15, 16)).append(Character
+					.forDigit(b & 15, 16));
+		}
+		return hex.toString();
+	}
+
+	private static void assertTokens(byte[][] expected, TokenArray actual) {
+		Assert.assertEquals(expected.length, actual.size());
+		byte[] token = new byte[32];
+		int k = 0;
+		for (DeviceToken device : actual) {
+			Assert.assertArrayEquals(expected[k], device.getApnsToken());
+			actual.getToken(k ++, token, 0);
+			Assert.assertArrayEquals(expected[k - 1], token);
+		}
+	}
+
+	@Test
+	public void testStreamFormats() throws IOException {
+		byte[][] tokens = randomTokens(500);
+		StringBuilder base64 = new StringBuilder(), hex = new StringBuilder();
+		for (int k = 0; k < tokens.length; k ++) {
+			String encoded = Base64.getEncoder().encodeToString(tokens[k]);
+			if (k % 2 == 1) {
+				encoded = encoded.replace('+', '-').replace('/', '_').replace(
+						"=", "");
+			}
+			base64.append(encoded).append(k % 3 == 0 ? "\r\n" : "\n");
+			hex.append(' ').append(toHex(k % 2 == 0 ? tokens[k] : tokens[0]))
+					.append('\n');
+		}
+		base64.append("\nnot a token\n").append(Base64.getEncoder()
+				.encodeToString(tokens[7])).append('\n');
+		base64.append(Base64.getEncoder().encodeToString(new byte[31]));
+		TokenLoader loader = new TokenLoader(TokenLoader.Format.BASE64);
+		TokenArray loaded = loader.load(new ByteArrayInputStream(base64
+				.toString().getBytes("US-ASCII")));
+		assertTokens(tokens, loaded);
+		Assert.assertEquals(2, loader.getRejected());
+		Assert.assertEquals(1, loader.getDuplicates());
+		loader = new TokenLoader(TokenLoader.Format.HEX);
+		loaded = loader.load(new ByteArrayInputStream(hex.toString().getBytes(
+				"US-ASCII")));
+		Assert.assertEquals(250, loaded.size());
+		Assert.assertEquals(250, loader.getDuplicates());
+		Assert.assertEquals(0, loader.getRejected());
+		byte[] raw = new byte[32 * tokens.length + 5];
+		for (int k = 0; k < tokens.length; k ++) {
+			System.arraycopy(tokens[k], 0, raw, 32 * k, 32);
+		}
+		loader = new TokenLoader(TokenLoader.Format.RAW);
+		assertTokens(tokens, loader.load(new ByteArrayInputStream(raw)));
+		Assert.assertEquals(1, loader.getRejected());
+	}
+
+	@Test
+	public void testParallelFile() throws IOException {
+		byte[][] tokens = randomTokens(20000);
+		File text = folder.newFile("tokens.txt"), raw = folder.newFile(
+				"tokens.bin");
+		FileOutputStream out = new FileOutputStream(text);
+		for (int k = 0; k < tokens.length; k ++) {
+			out.write((Base64.getEncoder().encodeToString(tokens[k]) + "\n")
+					.getBytes("US-ASCII"));
+			if (k % 1000 == 0) {
+				out.write((Base64.getEncoder().encodeToString(tokens[k / 2]) +
+						"\n").getBytes("US-ASCII"));
+			}
+		}
+		out.close();
+		out = new FileOutputStream(raw);
+		for (byte[] token : tokens) {
+			out.write(token);
+		}
+		out.close();
+		for (int n_threads = 1; n_threads <= 7; n_threads += 3) {
+			TokenLoader loader = new TokenLoader(TokenLoader.Format.BASE64)
+					.setThreads(n_threads);
+			assertTokens(tokens, loader.load(text));
+			Assert.assertEquals(20, loader.getDuplicates());
+			Assert.assertEquals(0, loader.getRejected());
+			loader = new TokenLoader(TokenLoader.Format.RAW).setThreads(
+					n_threads);
+			assertTokens(tokens, loader.load(raw));
+			Assert.assertEquals(0, loader.getRejected());
+		}
+	}
+}
@@ -3,11 +3,15 @@ package com.sbandara.cloudpokes.mockapns;
 import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import javax.net.ServerSocketFactory;
+import javax.net.ssl.SSLContext;
+
 import org.slf4j.*;
 
 public class MockApnsServer {
@@ -19,21 +23,28 @@ public class MockApnsServer {
 		
 		private ServerSocket server_socket;
 		
-		PortListener(int port) throws IOException {
-		    server_socket = new ServerSocket(port);
+		PortListener(int port, ServerSocketFactory factory)
+				throws IOException {
+		    server_socket = factory.createServerSocket();
+		    server_socket.setReuseAddress(true);
+		    server_socket.bind(new InetSocketAddress(port));
 			Thread listener_thread = new Thread(this);
 			listener_thread.start();
 		}
 		
 		private void spawnServerThread(Socket client) {
-			int k = 0;
-		    while ((k < MAX_CONN) && (conns[k ++] != null));
-		    if (k == MAX_CONN) {
-		    	closeQuietly(client);
-		    }
-		    else {
-		    	conns[k] = new ServerThread(client, k).start();
-		    }
+			synchronized (conns) {
+				int k = 0;
+			    while ((k < MAX_CONN) && (conns[k] != null)) {
+			    	k ++;
+			    }
+			    if (k == MAX_CONN) {
+			    	closeQuietly(client);
+			    }
+			    else {
+			    	conns[k] = new ServerThread(client, k).start();
+			    }
+			}
 		}
 		
 		public void run() {
@@ -258,7 +269,7 @@ public class MockApnsServer {
 			}
 			catch (IOException e) { }
 			boolean was_interrupted = false;
-			while (conns[conn_idx] != null) {
+			while (conns[conn_idx] == this) {
 				try {
 					conns.wait();
 				}
@@ -289,7 +300,22 @@ public class MockApnsServer {
 		if (port_listener != null) {
 			stop();
 		}
-		port_listener = new PortListener(port);
+		port_listener = new PortListener(port, ServerSocketFactory
+				.getDefault());
+	}
+	
+	/**
+	 * Starts the mock server to accept TLS connections, like APNS does.
+	 * @param port the port at which to wait for clients to connect
+	 * @param context the TLS context that holds the server certificate
+	 * @throws IOException if a port listener could not be established
+	 */
+	public void start(int port, SSLContext context) throws IOException {
+		if (port_listener != null) {
+			stop();
+		}
+		port_listener = new PortListener(port, context
+				.getServerSocketFactory());
 	}
 	
 	/**
@@ -306,6 +332,21 @@ public class MockApnsServer {
 		}
 	}
 	
+	/**
+	 * @return the number of client connections currently open
+	 */
+	public int getConnectionCount() {
+		synchronized (conns) {
+			int n = 0;
+			for (ServerThread conn : conns) {
+				if (conn != null) {
+					n ++;
+				}
+			}
+			return n;
+		}
+	}
+	
 	/**
 	 * Closes all client connections with error code 10 and shuts down the mock
 	 * server.
@@ -7,6 +7,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import org.junit.*;
@@ -86,6 +87,52 @@ public class MockServerTest {
 		assertEquals(packets.size(), token.length);
 	}
 	
+	@Test(timeout=1000)
+	public void testReusedDirectBuilder()
+			throws IOException, InterruptedException {
+		PacketBuilder builder = new PacketBuilder(ByteBuffer.allocateDirect(
+				512));
+		ApnsToken token[] = ApnsToken.uniqueRandom(2);
+		for (int k = 0; k < token.length; k ++) {
+			if (k > 0) {
+				builder.begin();
+			}
+			builder.putArrayItem((byte) 1, token[k].getBytes()).putStringItem(
+					(byte) 2, "{\"aps\":{\"alert\":\"Hello world!\"}}")
+					.putIntItem((byte) 3, MSG_ID + k).finish();
+		}
+		ByteBuffer frames = builder.getBuffer();
+		frames.flip();
+		synchronized (packets) {
+			byte[] bytes = new byte[frames.remaining()];
+			frames.get(bytes);
+			socket.getOutputStream().write(bytes);
+			while (packets.size() < token.length) {
+				packets.wait();
+			}
+		}
+		assertEquals(MSG_ID + 1, packets.get(1).getNotificationId());
+		assertArrayEquals(buildValid(token[0], 0), builder.reset().putArrayItem(
+				(byte) 1, token[0].getBytes()).putStringItem((byte) 2,
+				"{\"aps\":{\"alert\":\"Hello world!\"}}")
+				.putIntItem((byte) 3, 0).putIntItem((byte) 4, 0)
+				.putByteItem((byte) 5, (byte) 10).build());
+	}
+	
+	@Test
+	public void testStreamedItem() throws IOException {
+		final String text = "{\"alert\":\"Gr\u00fc\u00dfe \u20ac \ud83d\ude00\"}";
+		ApnsToken token = ApnsToken.randomToken();
+		PacketBuilder builder = new PacketBuilder(ByteBuffer.allocateDirect(
+				512)).putArrayItem((byte) 1, token.getBytes());
+		builder.beginItem((byte) 2).write(text);
+		byte[] streamed = builder.endItem().putIntItem((byte) 3, MSG_ID)
+				.build();
+		assertArrayEquals(new PacketBuilder(512).putArrayItem((byte) 1, token
+				.getBytes()).putStringItem((byte) 2, text).putIntItem((byte) 3,
+				MSG_ID).build(), streamed);
+	}
+
 	@Test(timeout=1000)
 	public void testBadToken() throws IOException {
 		ApnsToken bad_token = ApnsToken.randomToken();
@@ -0,0 +1,82 @@
+package com.sbandara.cloudpokes.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JournalTest {
+
+	private final static int SEGMENT_SIZE = 256, COUNT = 40;
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static ByteBuffer record(int id) {
+		return ByteBuffer.wrap(("Record " + id).getBytes());
+	}
+
+	private static class Collector implements MappedJournal.Visitor {
+		final ArrayList<Integer> ids = new ArrayList<Integer>();
+		public void visit(int id, ByteBuffer record) {
+			Assert.assertEquals(record(id), record);
+			ids.add(id);
+		}
+	}
+
+	@Test
+	public void testReplayAfterReopen() throws IOException {
+		File dir = tmp.newFolder("journal");
+		MappedJournal journal = new MappedJournal(dir, SEGMENT_SIZE, 100);
+		long consumed = -1;
+		for (int id = 1; id <= COUNT; id ++) {
+			long end = journal.append(id, record(id));
+			if (id == 25) {
+				consumed = end;
+			}
+		}
+		journal.setConsumed(consumed);
+		journal.close();
+		journal = new MappedJournal(dir, SEGMENT_SIZE, 100);
+		Assert.assertEquals(COUNT, journal.getLastId());
+		Collector collector = new Collector();
+		Assert.assertEquals(journal.getEnd(), journal.replay(journal
+				.getConsumed(), journal.getEnd(), collector));
+		Assert.assertEquals(COUNT - 25, collector.ids.size());
+		for (int k = 0; k < collector.ids.size(); k ++) {
+			Assert.assertEquals(26 + k, (int) collector.ids.get(k));
+		}
+	}
+
+	@Test
+	public void testFindAcrossSegments() throws IOException {
+		MappedJournal journal = new MappedJournal(tmp.newFolder("find"),
+				SEGMENT_SIZE, 100);
+		for (int id = 1; id <= COUNT; id ++) {
+			journal.append(id, record(id));
+		}
+		Assert.assertEquals(-1, journal.find(COUNT + 1));
+		Collector collector = new Collector();
+		journal.replay(journal.find(3), journal.find(30), collector);
+		Assert.assertEquals(27, collector.ids.size());
+		Assert.assertEquals(4, (int) collector.ids.get(0));
+		Assert.assertEquals(30, (int) collector.ids.get(26));
+	}
+
+	@Test
+	public void testTrimConsumedSegments() throws IOException {
+		File dir = tmp.newFolder("trim");
+		MappedJournal journal = new MappedJournal(dir, SEGMENT_SIZE, 2);
+		for (int id = 1; id <= COUNT; id ++) {
+			journal.setConsumed(journal.append(id, record(id)));
+		}
+		Assert.assertEquals(2, dir.listFiles().length - 1);
+		Assert.assertEquals(-1, journal.find(1));
+		Assert.assertTrue(journal.find(COUNT) >= 0);
+	}
+}
@@ -0,0 +1,44 @@
+package com.sbandara.cloudpokes.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	@Test
+	public void testPacing() {
+		TokenBucket bucket = new TokenBucket(1000, 20, 0);
+		long start = System.nanoTime();
+		bucket.acquire(20);
+		Assert.assertTrue(System.nanoTime() - start < 20000000L);
+		for (int k = 0; k < 10; k ++) {
+			bucket.acquire(20);
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		Assert.assertTrue(millis >= 190);
+		Assert.assertTrue(millis < 1000);
+	}
+
+	@Test
+	public void testRelease() {
+		TokenBucket bucket = new TokenBucket(100, 20, 0);
+		bucket.acquire(20);
+		bucket.release(15);
+		long start = System.nanoTime();
+		bucket.acquire(15);
+		Assert.assertTrue(System.nanoTime() - start < 50000000L);
+	}
+
+	@Test
+	public void testSlowDownAndRecover() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(1000, 20, 400);
+		bucket.slowDown();
+		Assert.assertTrue(bucket.getRate() < 600);
+		for (int k = 0; k < 10; k ++) {
+			bucket.slowDown();
+		}
+		Assert.assertEquals(1000 / 16.0, bucket.getRate(), 20);
+		Thread.sleep(500);
+		Assert.assertEquals(1000, bucket.getRate(), 0);
+	}
+}
@@ -0,0 +1,81 @@
+package com.sbandara.cloudpokes.util;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TokenSetTest {
+
+	private final static int COUNT = 100000;
+
+	private static byte[][] randomTokens(long seed) {
+		Random random = new Random(seed);
+		byte[][] tokens = new byte[COUNT][TokenSet.TOKEN_LEN];
+		for (byte[] token : tokens) {
+			random.nextBytes(token);
+		}
+		return tokens;
+	}
+
+	@Test
+	public void testExactSet() {
+		TokenSet set = new TokenSet(16);
+		byte[][] tokens = randomTokens(1), others = randomTokens(2);
+		for (byte[] token : tokens) {
+			Assert.assertTrue(set.add(token));
+		}
+		Assert.assertFalse(set.add(tokens[42]));
+		Assert.assertTrue(set.add(new byte[TokenSet.TOKEN_LEN]));
+		Assert.assertEquals(COUNT + 1, set.size());
+		for (int k = 0; k < COUNT; k ++) {
+			Assert.assertTrue(set.contains(tokens[k]));
+			Assert.assertFalse(set.contains(others[k]));
+		}
+		Assert.assertTrue(set.contains(new byte[TokenSet.TOKEN_LEN]));
+	}
+
+	@Test
+	public void testFingerprintSet() {
+		TokenFingerprintSet set = new TokenFingerprintSet(COUNT);
+		byte[][] tokens = randomTokens(5), others = randomTokens(6);
+		for (byte[] token : tokens) {
+			Assert.assertTrue(set.add(token));
+		}
+		Assert.assertFalse(set.add(tokens[42]));
+		Assert.assertEquals(COUNT, set.size());
+		Assert.assertTrue(set.getTableBytes() < 11 * COUNT);
+		for (int k = 0; k < COUNT; k ++) {
+			Assert.assertTrue(set.contains(tokens[k]));
+			Assert.assertFalse(set.contains(others[k]));
+		}
+		TokenFingerprintSet small = new TokenFingerprintSet(16);
+		for (byte[] token : tokens) {
+			small.add(token);
+		}
+		Assert.assertTrue(small.add(new byte[TokenSet.TOKEN_LEN]));
+		Assert.assertEquals(COUNT + 1, small.size());
+		for (int k = 0; k < COUNT; k ++) {
+			Assert.assertTrue(small.contains(tokens[k]));
+			Assert.assertFalse(small.contains(others[k]));
+		}
+		Assert.assertTrue(small.contains(new byte[TokenSet.TOKEN_LEN]));
+	}
+
+	@Test
+	public void testBloomFilter() {
+		BloomFilter filter = new BloomFilter(COUNT, 0.01);
+		byte[][] tokens = randomTokens(3), others = randomTokens(4);
+		for (byte[] token : tokens) {
+			filter.add(token, 0);
+		}
+		int n_false = 0;
+		for (int k = 0; k < COUNT; k ++) {
+			Assert.assertTrue(filter.mightContain(tokens[k], 0));
+			if (filter.mightContain(others[k], 0)) {
+				n_false ++;
+			}
+		}
+		Assert.assertTrue(n_false < COUNT / 50);
+	}
+}